@@ -0,0 +1,21 @@
+package com.integpg.system;
+
+import java.util.Arrays;
+
+/**
+ * An off-unit stand-in for the JANOS ArrayUtils class.
+ */
+public class ArrayUtils {
+
+    public static int arraycopy(Object src, int src_position, Object dst, int dst_position, int length) {
+        System.arraycopy(src, src_position, dst, dst_position, length);
+        return 0;
+    }
+
+
+
+    public static void arrayFill(byte[] thisArray, int fromIndex, int toIndex, byte fillValue) {
+        Arrays.fill(thisArray, fromIndex, toIndex, fillValue);
+    }
+
+}
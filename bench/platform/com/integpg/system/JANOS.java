@@ -0,0 +1,126 @@
+package com.integpg.system;
+
+import java.io.IOException;
+import java.util.Hashtable;
+
+/**
+ * An off-unit stand-in for the JANOS system class. Only the calls reached by the SerialControl
+ * command and alert paths are provided. The registry is kept in memory and I/O is expected to go
+ * through the SimulatedIoBackend instead of this class.
+ */
+public class JANOS {
+
+    private static final Hashtable REGISTRY = new Hashtable();
+    private static long _registryLastModified = 0;
+
+
+
+    private JANOS() {
+    }
+
+
+
+    public static int getInputStates() {
+        throw new UnsupportedOperationException("off-unit I/O goes through the SimulatedIoBackend");
+    }
+
+
+
+    public static int getOutputStates() {
+        throw new UnsupportedOperationException("off-unit I/O goes through the SimulatedIoBackend");
+    }
+
+
+
+    public static void setOutputStates(int bits, int mask) throws IOException {
+        throw new UnsupportedOperationException("off-unit I/O goes through the SimulatedIoBackend");
+    }
+
+
+
+    public static boolean setOutputPulsed(int bits, int mask, int milliseconds) throws IOException {
+        throw new UnsupportedOperationException("off-unit I/O goes through the SimulatedIoBackend");
+    }
+
+
+
+    public static int getInputCounter(int chan) {
+        throw new UnsupportedOperationException("off-unit I/O goes through the SimulatedIoBackend");
+    }
+
+
+
+    public static String getRegistryString(String key, String sDefault) {
+        String value = (String) REGISTRY.get(key.toLowerCase());
+        return (null != value) ? value : sDefault;
+    }
+
+
+
+    public static boolean getRegistryBoolean(String key, boolean bDefault) {
+        String value = (String) REGISTRY.get(key.toLowerCase());
+        return (null != value) ? Boolean.valueOf(value).booleanValue() : bDefault;
+    }
+
+
+
+    public static int getRegistryInt(String key, int nDefault) {
+        String value = (String) REGISTRY.get(key.toLowerCase());
+        try {
+            return (null != value) ? Integer.parseInt(value) : nDefault;
+        } catch (NumberFormatException ex) {
+            return nDefault;
+        }
+    }
+
+
+
+    public static double getRegistryDouble(String key, double dDefault) {
+        String value = (String) REGISTRY.get(key.toLowerCase());
+        try {
+            return (null != value) ? Double.parseDouble(value) : dDefault;
+        } catch (NumberFormatException ex) {
+            return dDefault;
+        }
+    }
+
+
+
+    public static String[] getRegistryKey(String key) {
+        String value = (String) REGISTRY.get(key.toLowerCase());
+        return (null != value) ? new String[]{ value } : new String[0];
+    }
+
+
+
+    public static boolean setRegistryString(String key, String value) {
+        REGISTRY.put(key.toLowerCase(), value);
+        _registryLastModified = System.currentTimeMillis();
+        return true;
+    }
+
+
+
+    /**
+     * the stand-in keeps one modified time for the whole registry
+     */
+    public static long getRegistryLastModified(String key) {
+        return _registryLastModified;
+    }
+
+
+
+    public static void syslog(String message) {
+    }
+
+
+
+    public static void syslog(String message, int level) {
+    }
+
+
+
+    public static void syslog(String message, int level, int logs) {
+    }
+
+}
@@ -0,0 +1,14 @@
+package com.integpg.system;
+
+import java.util.TimeZone;
+
+/**
+ * An off-unit stand-in for the JANOS Timebase class.
+ */
+public class Timebase {
+
+    public static String getTimeZone() {
+        return TimeZone.getDefault().getDisplayName(false, TimeZone.SHORT);
+    }
+
+}
@@ -0,0 +1,39 @@
+package com.integ.serialcontrol;
+
+/**
+ * A single operation measured by the BenchmarkRunner. setUp and tearDown are called once around
+ * the warmup and measurement iterations and are not timed.
+ */
+abstract class Benchmark {
+
+    private final String _name;
+
+
+
+    Benchmark(String name) {
+        _name = name;
+    }
+
+
+
+    String getName() {
+        return _name;
+    }
+
+
+
+    void setUp() throws Exception {
+        // nothing by default
+    }
+
+
+
+    abstract void run() throws Exception;
+
+
+
+    void tearDown() throws Exception {
+        // nothing by default
+    }
+
+}
@@ -0,0 +1,358 @@
+package com.integ.serialcontrol;
+
+import com.integ.common.logging.AppLog;
+import com.integ.common.logging.NullOutLog;
+import com.integ.common.net.BytesReceivedEvent;
+import com.integ.common.system.Application;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+
+/**
+ * Runs the command path benchmarks off the unit against the SimulatedIoBackend and reports the
+ * throughput and allocation rate of each one. Run it with the "bench" ant target. Any arguments
+ * are used as name filters, only benchmarks whose name contains one of them are run. The sequence
+ * timing checks run first under the name "sequence" and fail the run if a delay is not kept.
+ */
+public class BenchmarkRunner {
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASUREMENT_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 1000000000L;
+    private static final int BATCH_SIZE = 256;
+
+    private static final int[] BROADCAST_CLIENT_COUNTS = new int[]{ 1, 8, 32 };
+
+    /* sequence delays to check, shorter and longer than a turn of the engine's wheel */
+    private static final int[] SEQUENCE_DELAYS = new int[]{ 100, 300, 1000 };
+    private static final int SEQUENCE_TOLERANCE = 50;
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN
+            = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+
+
+    public static void main(String[] args) throws Exception {
+        initApplication();
+        SimulatedIoBackend simulatedIoBackend = new SimulatedIoBackend();
+        IoBackends.set(simulatedIoBackend);
+
+        if (isSelected("sequence", args)) {
+            for (int delay : SEQUENCE_DELAYS) {
+                checkSequenceTiming(simulatedIoBackend, delay);
+            }
+        }
+
+        ArrayList<Benchmark> benchmarks = new ArrayList<>();
+        benchmarks.add(new JrmonBenchmark("c1"));
+        benchmarks.add(new JrmonBenchmark("o1"));
+        benchmarks.add(new JrmonBenchmark("t+2"));
+        benchmarks.add(new JrmonBenchmark("pc3=500"));
+        benchmarks.add(new JrmonBenchmark("c1,o2,t3,c+4"));
+        benchmarks.add(new QueryBenchmark("din3?"));
+        benchmarks.add(new QueryBenchmark("rout5?"));
+        for (int clientCount : BROADCAST_CLIENT_COUNTS) {
+            benchmarks.add(new BroadcastBenchmark(clientCount));
+        }
+
+        System.out.println(String.format("%-32s %14s %12s %12s", "benchmark", "ops/s", "B/op", "MB/s"));
+        for (Benchmark benchmark : benchmarks) {
+            if (isSelected(benchmark, args)) {
+                measure(benchmark);
+            }
+        }
+        System.exit(0);
+    }
+
+
+
+    /**
+     * Config builds its registry paths from the application name. Application.init talks to the
+     * operating system so we only plug in the assembly information here. The application logs are
+     * discarded so that client tear down does not write log files off the unit.
+     */
+    private static void initApplication() throws Exception {
+        Field assemblyBaseField = Application.class.getDeclaredField("_assemblyBase");
+        assemblyBaseField.setAccessible(true);
+        assemblyBaseField.set(null, new AssemblyInfo());
+
+        AppLog.setAppLog(NullOutLog.getLogger());
+        AppLog.setAppExceptionLog(NullOutLog.getLogger());
+    }
+
+
+
+    private static boolean isSelected(Benchmark benchmark, String[] filters) {
+        return isSelected(benchmark.getName(), filters);
+    }
+
+
+
+    private static boolean isSelected(String name, String[] filters) {
+        if (0 == filters.length) return true;
+        for (String filter : filters) {
+            if (name.contains(filter)) return true;
+        }
+        return false;
+    }
+
+
+
+    /**
+     * runs "c1,d=<delay>,o1" on the sequence engine and checks that relay 1 is held for the delay
+     */
+    private static void checkSequenceTiming(SimulatedIoBackend simulatedIoBackend, int delay)
+            throws Exception {
+        simulatedIoBackend.setOutputStates(0, 1);
+        byte[] steps = ("c1,d=" + delay + ",o1").getBytes();
+        SequenceEngine.get().start("timing", Sequence.compile(steps, 0, steps.length));
+
+        while (0 == (simulatedIoBackend.getOutputStates() & 1)) {
+            Thread.sleep(1);
+        }
+        long closedTime = System.currentTimeMillis();
+        while (0 != (simulatedIoBackend.getOutputStates() & 1)) {
+            Thread.sleep(1);
+        }
+        long held = System.currentTimeMillis() - closedTime;
+
+        System.out.println(String.format("sequence d=%d held for %d ms", delay, held));
+        if (SEQUENCE_TOLERANCE < Math.abs(held - delay)) {
+            throw new IllegalStateException(String.format("sequence d=%d was held for %d ms", delay, held));
+        }
+    }
+
+
+
+    private static void measure(Benchmark benchmark) throws Exception {
+        benchmark.setUp();
+        try {
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                runIteration(benchmark);
+            }
+
+            long threadId = Thread.currentThread().getId();
+            long allocatedBefore = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId);
+            long ops = 0;
+            long elapsedNanos = 0;
+            for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+                long start = System.nanoTime();
+                ops += runIteration(benchmark);
+                elapsedNanos += System.nanoTime() - start;
+            }
+            long allocated = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+            double seconds = elapsedNanos / 1e9;
+            System.out.println(String.format("%-32s %14.0f %12.1f %12.2f",
+                    benchmark.getName(), ops / seconds, (double) allocated / ops,
+                    allocated / seconds / (1024 * 1024)));
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+
+
+    private static long runIteration(Benchmark benchmark) throws Exception {
+        long ops = 0;
+        long deadline = System.nanoTime() + ITERATION_NANOS;
+        while (System.nanoTime() < deadline) {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                benchmark.run();
+            }
+            ops += BATCH_SIZE;
+        }
+        return ops;
+    }
+
+
+
+    /**
+     * creates a client whose input never delivers a command and whose output is discarded. the
+     * client is registered for broadcasts once its reader thread has started.
+     */
+    private static SerialControlClient createClient(String name, IdleInputStream inputStream) {
+        SerialControlClient serialControlClient
+                = new SerialControlClient(name, inputStream, new NullOutputStream());
+        serialControlClient.setLog(NullOutLog.getLogger());
+        return serialControlClient;
+    }
+
+
+
+    private static void awaitClientCount(int clientCount) throws InterruptedException {
+        while (clientCount != SerialControlClient.getClientCount()) {
+            Thread.sleep(10);
+        }
+    }
+
+
+
+    private static class JrmonBenchmark extends Benchmark {
+
+        private final Jrmon _jrmon = new Jrmon();
+        private final byte[] _commandBytes;
+
+
+
+        JrmonBenchmark(String command) {
+            super("jrmon " + command);
+            _commandBytes = command.getBytes();
+        }
+
+
+
+        @Override
+        void run() throws Exception {
+            // a command that is not valid would only measure the parse failure
+            if (!_jrmon.execute(_commandBytes, 0, _commandBytes.length)) {
+                throw new IllegalStateException(getName() + " is not a valid jrmon command");
+            }
+        }
+    }
+
+
+
+    private static class QueryBenchmark extends Benchmark {
+
+        private final BytesReceivedEvent _bytesReceivedEvent;
+        private IdleInputStream _inputStream;
+        private SerialControlClient _serialControlClient;
+
+
+
+        QueryBenchmark(String query) {
+            super("query " + query);
+            byte[] bytes = query.getBytes();
+            _bytesReceivedEvent = new BytesReceivedEvent(this, bytes, 0, bytes.length);
+        }
+
+
+
+        @Override
+        void setUp() throws Exception {
+            _inputStream = new IdleInputStream();
+            _serialControlClient = createClient("query", _inputStream);
+            awaitClientCount(1);
+        }
+
+
+
+        @Override
+        void run() {
+            _serialControlClient.bytesReceived(_bytesReceivedEvent);
+        }
+
+
+
+        @Override
+        void tearDown() throws Exception {
+            _inputStream.close();
+            awaitClientCount(0);
+        }
+    }
+
+
+
+    private static class BroadcastBenchmark extends Benchmark {
+
+        private final int _clientCount;
+        private final IdleInputStream[] _inputStreams;
+
+
+
+        BroadcastBenchmark(int clientCount) {
+            super("broadcast " + clientCount + " clients");
+            _clientCount = clientCount;
+            _inputStreams = new IdleInputStream[clientCount];
+        }
+
+
+
+        @Override
+        void setUp() throws Exception {
+            for (int i = 0; i < _clientCount; i++) {
+                _inputStreams[i] = new IdleInputStream();
+                createClient("client" + i, _inputStreams[i]);
+            }
+            awaitClientCount(_clientCount);
+        }
+
+
+
+        @Override
+        void run() {
+            SerialControlClient.broadcastAlert("din", true, 3, true, System.currentTimeMillis(), 12, 0, 1);
+        }
+
+
+
+        @Override
+        void tearDown() throws Exception {
+            for (IdleInputStream inputStream : _inputStreams) {
+                inputStream.close();
+            }
+            awaitClientCount(0);
+        }
+    }
+
+
+
+    /**
+     * an input stream that blocks until it is closed and then reports the end of the stream
+     */
+    private static class IdleInputStream extends InputStream {
+
+        private boolean _closed = false;
+
+
+
+        @Override
+        public synchronized int read() throws IOException {
+            while (!_closed) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex.getMessage());
+                }
+            }
+            return -1;
+        }
+
+
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            return read();
+        }
+
+
+
+        @Override
+        public synchronized void close() {
+            _closed = true;
+            notifyAll();
+        }
+    }
+
+
+
+    private static class NullOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+            // discard
+        }
+
+
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            // discard
+        }
+    }
+
+}
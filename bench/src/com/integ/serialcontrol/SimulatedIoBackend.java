@@ -0,0 +1,84 @@
+package com.integ.serialcontrol;
+
+/**
+ * An in-memory stand-in for the JNIOR I/O. Output writes are applied to a state word and counted
+ * so that benchmarks and bench setups can run the command paths without hardware. Pulses are
+ * recorded but the outputs are not returned to their original states.
+ */
+public class SimulatedIoBackend
+        implements IoBackend {
+
+    private static final int CHANNEL_COUNT = 16;
+
+    private int _inputStates = 0;
+    private int _outputStates = 0;
+    private final int[] _inputCounters = new int[CHANNEL_COUNT];
+
+    private long _outputWriteCount = 0;
+    private long _outputPulseCount = 0;
+
+
+
+    @Override
+    public synchronized int getInputStates() {
+        return _inputStates;
+    }
+
+
+
+    @Override
+    public synchronized int getOutputStates() {
+        return _outputStates;
+    }
+
+
+
+    @Override
+    public synchronized void setOutputStates(int bits, int mask) {
+        _outputStates = (_outputStates & ~mask) | (bits & mask);
+        _outputWriteCount++;
+    }
+
+
+
+    @Override
+    public synchronized boolean setOutputPulsed(int bits, int mask, int milliseconds) {
+        _outputPulseCount++;
+        return true;
+    }
+
+
+
+    @Override
+    public synchronized int getInputCounter(int chan) {
+        if (chan < 0 || CHANNEL_COUNT <= chan) return 0;
+        return _inputCounters[chan];
+    }
+
+
+
+    /**
+     * sets an input to the given state. a low to high transition increments the input counter the
+     * same way the hardware does.
+     */
+    public synchronized void setInput(int chan, boolean state) {
+        int bit = 1 << chan;
+        if (state && 0 == (_inputStates & bit)) {
+            _inputCounters[chan]++;
+        }
+        _inputStates = state ? (_inputStates | bit) : (_inputStates & ~bit);
+    }
+
+
+
+    public synchronized long getOutputWriteCount() {
+        return _outputWriteCount;
+    }
+
+
+
+    public synchronized long getOutputPulseCount() {
+        return _outputPulseCount;
+    }
+
+}
@@ -0,0 +1,160 @@
+package com.integ.serialcontrol;
+
+import com.integ.common.logging.AppLog;
+import java.util.ArrayList;
+
+/**
+ * Limits how often an alert is broadcast for each channel. A bouncing contact can log hundreds of
+ * transitions a second and each one would otherwise go to every client. Once a channel has sent
+ * an alert, its transitions for the next AlertMinInterval milliseconds are held back and only the
+ * latest one is kept. When the interval is up that latest state and counter are sent, along with
+ * the number of transitions that were never sent, so the clients still end up with the right
+ * state. A single thread sends these trailing alerts.
+ */
+public class AlertRateLimiter
+        implements Runnable {
+
+    /* the most recent alert for a channel and the one being held back */
+    private static class ChannelState {
+
+        final String _typeString;
+        final boolean _isInput;
+        final int _channel;
+
+        long _lastSent = 0;
+        int _suppressedCount = 0;
+
+        boolean _pending = false;
+        boolean _pendingState;
+        long _pendingTimestamp;
+        int _pendingCounter;
+        long _pendingSeq;
+
+
+
+        ChannelState(String typeString, boolean isInput, int channel) {
+            _typeString = typeString;
+            _isInput = isInput;
+            _channel = channel;
+        }
+    }
+
+    /* indexed by the channel key.  guarded by this */
+    private ChannelState[] _channelStates = new ChannelState[2 * 256];
+    /* the channels that have an alert held back.  guarded by this */
+    private final ArrayList<ChannelState> _pendingChannels = new ArrayList<>();
+
+    private Thread _thread = null;
+
+
+
+    /**
+     * sends the alert now or holds it back until the channel's interval is up.  this is called by
+     * the IoLog monitors and never waits.
+     */
+    public synchronized void alert(String typeString, boolean isInput, int channel, boolean state,
+            long timestamp, int counter, long seq) {
+        int minInterval = Config.getAlertMinInterval();
+        ChannelState channelState = getChannelState(typeString, isInput, channel);
+        long now = System.currentTimeMillis();
+
+        if (!channelState._pending && (minInterval <= 0 || minInterval <= now - channelState._lastSent)) {
+            // the broadcast only queues the alert so it is fine to hold the lock.  this keeps the
+            // alerts for a channel in order with the ones the thread sends
+            SerialControlClient.broadcastAlert(typeString, isInput, channel, state, timestamp, counter,
+                    channelState._suppressedCount, seq);
+            channelState._lastSent = now;
+            channelState._suppressedCount = 0;
+            return;
+        }
+
+        // the transition that this one replaces will never be sent
+        if (channelState._pending) {
+            channelState._suppressedCount++;
+        } else {
+            channelState._pending = true;
+            _pendingChannels.add(channelState);
+        }
+        channelState._pendingState = state;
+        channelState._pendingTimestamp = timestamp;
+        channelState._pendingCounter = counter;
+        channelState._pendingSeq = seq;
+
+        if (null == _thread) {
+            _thread = new Thread(this);
+            _thread.setName("SerialControl-AlertRateLimiter");
+            _thread.setDaemon(true);
+            _thread.start();
+        }
+        notifyAll();
+    }
+
+
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                synchronized (this) {
+                    long wait = sendDueAlerts(System.currentTimeMillis());
+                    wait(wait);
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } catch (Exception ex) {
+                AppLog.error("error sending rate limited alerts", ex);
+            }
+        }
+    }
+
+
+
+    /**
+     * sends the held back alerts whose interval is up
+     *
+     * @return how long until the next one is due, 0 if there are none
+     */
+    private long sendDueAlerts(long now) {
+        // the interval may have been changed by a reload
+        int minInterval = Math.max(0, Config.getAlertMinInterval());
+
+        long nextDue = Long.MAX_VALUE;
+        for (int i = _pendingChannels.size() - 1; i >= 0; i--) {
+            ChannelState channelState = _pendingChannels.get(i);
+            long due = channelState._lastSent + minInterval;
+            if (now < due) {
+                nextDue = Math.min(nextDue, due);
+                continue;
+            }
+
+            SerialControlClient.broadcastAlert(channelState._typeString, channelState._isInput,
+                    channelState._channel, channelState._pendingState, channelState._pendingTimestamp,
+                    channelState._pendingCounter, channelState._suppressedCount, channelState._pendingSeq);
+            channelState._lastSent = now;
+            channelState._suppressedCount = 0;
+            channelState._pending = false;
+            _pendingChannels.remove(i);
+        }
+
+        return (Long.MAX_VALUE == nextDue) ? 0 : nextDue - now;
+    }
+
+
+
+    private ChannelState getChannelState(String typeString, boolean isInput, int channel) {
+        int channelKey = OutboundQueue.getChannelKey(isInput, channel);
+        if (_channelStates.length <= channelKey) {
+            ChannelState[] channelStates = new ChannelState[2 * channelKey];
+            System.arraycopy(_channelStates, 0, channelStates, 0, _channelStates.length);
+            _channelStates = channelStates;
+        }
+
+        ChannelState channelState = _channelStates[channelKey];
+        if (null == channelState) {
+            channelState = new ChannelState(typeString, isInput, channel);
+            _channelStates[channelKey] = channelState;
+        }
+        return channelState;
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.integ.serialcontrol;
+
+/**
+ * A reusable, growable buffer of ASCII bytes. Replies and frames are built in one of these instead
+ * of with String.format so that building them does not allocate once the buffer is large enough.
+ */
+public class AsciiBuffer {
+
+    static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes();
+
+    private byte[] _bytes;
+    private int _length = 0;
+
+
+
+    public AsciiBuffer(int capacity) {
+        _bytes = new byte[Math.max(capacity, 16)];
+    }
+
+
+
+    public AsciiBuffer reset() {
+        _length = 0;
+        return this;
+    }
+
+
+
+    public byte[] getBytes() {
+        return _bytes;
+    }
+
+
+
+    public int getLength() {
+        return _length;
+    }
+
+
+
+    public AsciiBuffer append(char c) {
+        ensureCapacity(1);
+        _bytes[_length++] = (byte) c;
+        return this;
+    }
+
+
+
+    /**
+     * appends the low 8 bits of the value.  this is how the binary protocol is built.
+     */
+    public AsciiBuffer appendByte(int value) {
+        ensureCapacity(1);
+        _bytes[_length++] = (byte) value;
+        return this;
+    }
+
+
+
+    public AsciiBuffer append(String s) {
+        int length = s.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            _bytes[_length++] = (byte) s.charAt(i);
+        }
+        return this;
+    }
+
+
+
+    public AsciiBuffer append(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, _bytes, _length, length);
+        _length += length;
+        return this;
+    }
+
+
+
+    public AsciiBuffer append(int value) {
+        return append((long) value);
+    }
+
+
+
+    public AsciiBuffer append(long value) {
+        if (value < 0) {
+            if (Long.MIN_VALUE == value) {
+                return append(Long.toString(value));
+            }
+            append('-');
+            value = -value;
+        }
+
+        int digitCount = 1;
+        for (long remaining = value / 10; 0 != remaining; remaining /= 10) {
+            digitCount++;
+        }
+
+        ensureCapacity(digitCount);
+        for (int i = _length + digitCount - 1; i >= _length; i--) {
+            _bytes[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        _length += digitCount;
+        return this;
+    }
+
+
+
+    /**
+     * appends the value as the given number of upper case hex digits
+     */
+    public AsciiBuffer appendHex(int value, int digitCount) {
+        ensureCapacity(digitCount);
+        for (int i = _length + digitCount - 1; i >= _length; i--) {
+            _bytes[i] = HEX_DIGITS[value & 0xf];
+            value >>>= 4;
+        }
+        _length += digitCount;
+        return this;
+    }
+
+
+
+    private void ensureCapacity(int additionalLength) {
+        if (_bytes.length < _length + additionalLength) {
+            byte[] bytes = new byte[Math.max(2 * _bytes.length, _length + additionalLength)];
+            System.arraycopy(_bytes, 0, bytes, 0, _length);
+            _bytes = bytes;
+        }
+    }
+
+
+
+    @Override
+    public String toString() {
+        return new String(_bytes, 0, _length);
+    }
+
+}
@@ -0,0 +1,351 @@
+package com.integ.serialcontrol;
+
+import com.integ.common.logging.AppLog;
+import com.integ.common.logging.FileLog;
+import com.integ.common.logging.Logger;
+import java.text.QuickDateFormat;
+import java.util.ArrayList;
+
+/**
+ * A logger that hands its lines to a single writer thread instead of writing them to the file
+ * log on the calling thread. The lines wait in a bounded ring of records whose buffers are
+ * allocated once, so logging from a reader or writer thread is a copy into a record and never a
+ * flash write. When the ring is full the line is dropped and counted, the writer reports how many
+ * were lost. The writer drains every record that is waiting and writes the lines for each file
+ * log with one call.
+ *
+ * The traffic methods log the commands and frames that a client receives and sends. They take the
+ * bytes rather than a String so nothing is built unless the line is kept, and only one in every
+ * LogSampling of them is kept.
+ */
+public class AsyncLog extends Logger {
+
+    /* a traffic line is cut off at this length.  other lines grow their record */
+    private static final int RECORD_LENGTH = 160;
+
+    private static final Object LOCK = new Object();
+    /* the loggers that have been created, one for each target.  guarded by LOCK */
+    private static final ArrayList<AsyncLog> LOGGERS = new ArrayList<>();
+
+    /* the ring of records.  guarded by LOCK */
+    private static AsyncLog[] _owners = null;
+    private static long[] _times;
+    private static byte[][] _texts;
+    private static int[] _lengths;
+    private static int _head = 0;
+    private static int _count = 0;
+    private static long _droppedCount = 0;
+
+    private static Thread _thread = null;
+
+    private final Logger _target;
+    private final boolean _isFileLog;
+    /* only used by the writer thread */
+    private final StringBuilder _batch = new StringBuilder();
+    private boolean _started = false;
+
+    /* counts the traffic lines for sampling.  this is not guarded, a lost update only shifts
+       which line is sampled */
+    private int _trafficCount = 0;
+
+
+
+    /**
+     * @return the asynchronous logger for the target.  the same instance is returned for the
+     * same target.
+     */
+    public static AsyncLog getLogger(Logger target) {
+        if (target instanceof AsyncLog) return (AsyncLog) target;
+
+        synchronized (LOCK) {
+            for (int i = 0; i < LOGGERS.size(); i++) {
+                if (LOGGERS.get(i)._target == target) return LOGGERS.get(i);
+            }
+
+            if (null == _owners) allocate(Math.max(1, Config.getLogQueueSize()));
+
+            AsyncLog asyncLog = new AsyncLog(target);
+            LOGGERS.add(asyncLog);
+            return asyncLog;
+        }
+    }
+
+
+
+    /**
+     * @return the number of lines that were dropped because the ring was full
+     */
+    public static long getDroppedCount() {
+        synchronized (LOCK) {
+            return _droppedCount;
+        }
+    }
+
+
+
+    private AsyncLog(Logger target) {
+        _target = target;
+        _isFileLog = target instanceof FileLog;
+    }
+
+
+
+    /**
+     * logs a line like "client received: text" for a sampled command or frame.  the bytes are
+     * copied so the caller may reuse them.
+     */
+    public void traffic(String clientNameString, String action, byte[] bytes, int offset, int length) {
+        if (!isSampled()) return;
+
+        synchronized (LOCK) {
+            int index = beginRecord();
+            if (-1 == index) return;
+
+            byte[] text = _texts[index];
+            int textLength = appendString(text, 0, clientNameString);
+            textLength = appendString(text, textLength, " ");
+            textLength = appendString(text, textLength, action);
+            textLength = appendString(text, textLength, ": ");
+            int copyLength = Math.min(length, text.length - textLength);
+            System.arraycopy(bytes, offset, text, textLength, copyLength);
+            endRecord(index, textLength + copyLength);
+        }
+    }
+
+
+
+    /**
+     * logs a line like "client received binary request 0x01" for a sampled binary frame
+     */
+    public void traffic(String clientNameString, String action, int code) {
+        if (!isSampled()) return;
+
+        synchronized (LOCK) {
+            int index = beginRecord();
+            if (-1 == index) return;
+
+            byte[] text = _texts[index];
+            int textLength = appendString(text, 0, clientNameString);
+            textLength = appendString(text, textLength, " ");
+            textLength = appendString(text, textLength, action);
+            textLength = appendString(text, textLength, " 0x");
+            if (textLength + 2 <= text.length) {
+                text[textLength++] = AsciiBuffer.HEX_DIGITS[(code >> 4) & 0xf];
+                text[textLength++] = AsciiBuffer.HEX_DIGITS[code & 0xf];
+            }
+            endRecord(index, textLength);
+        }
+    }
+
+
+
+    /**
+     * queues the lines that the Logger methods build.  these are not sampled.
+     */
+    @Override
+    protected void println(String s) {
+        synchronized (LOCK) {
+            int index = beginRecord();
+            if (-1 == index) return;
+
+            if (_texts[index].length < s.length()) _texts[index] = new byte[s.length()];
+            endRecord(index, appendString(_texts[index], 0, s));
+        }
+    }
+
+
+
+    @Override
+    protected void print(String s) {
+        println(s);
+    }
+
+
+
+    @Override
+    public void writeln(String s) {
+        println(s);
+    }
+
+
+
+    @Override
+    protected void flush() {
+        // the writer thread writes the lines as soon as it can
+    }
+
+
+
+    private boolean isSampled() {
+        int logSampling = Config.getLogSampling();
+        if (logSampling <= 0) return false;
+        if (1 == logSampling) return true;
+
+        int trafficCount = _trafficCount + 1;
+        if (trafficCount >= logSampling) trafficCount = 0;
+        _trafficCount = trafficCount;
+        return 0 == trafficCount;
+    }
+
+
+
+    /**
+     * @return the index of the next free record or -1 if the ring is full.  the LOCK must be held.
+     */
+    private int beginRecord() {
+        if (_count == _owners.length) {
+            _droppedCount++;
+            return -1;
+        }
+        return (_head + _count) % _owners.length;
+    }
+
+
+
+    /**
+     * adds the record to the ring and wakes the writer.  the LOCK must be held.
+     */
+    private void endRecord(int index, int length) {
+        _owners[index] = this;
+        _times[index] = System.currentTimeMillis();
+        _lengths[index] = length;
+        _count++;
+
+        if (null == _thread) {
+            _thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWriter();
+                }
+            });
+            _thread.setName("SerialControl-AsyncLog");
+            _thread.setDaemon(true);
+            _thread.start();
+        }
+        LOCK.notifyAll();
+    }
+
+
+
+    /**
+     * copies the characters of the string that fit.  the lines are ASCII.
+     *
+     * @return the length of the text after the string
+     */
+    private static int appendString(byte[] text, int textLength, String s) {
+        int length = Math.min(s.length(), text.length - textLength);
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            text[textLength++] = (c < 0x100) ? (byte) c : (byte) '?';
+        }
+        return textLength;
+    }
+
+
+
+    private static void allocate(int capacity) {
+        _owners = new AsyncLog[capacity];
+        _times = new long[capacity];
+        _texts = new byte[capacity][];
+        _lengths = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            _texts[i] = new byte[RECORD_LENGTH];
+        }
+    }
+
+
+
+    private static void runWriter() {
+        // the records are swapped with these so that draining the ring does not copy the text
+        int capacity = _owners.length;
+        AsyncLog[] owners = new AsyncLog[capacity];
+        long[] times = new long[capacity];
+        byte[][] texts = new byte[capacity][];
+        int[] lengths = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            texts[i] = new byte[RECORD_LENGTH];
+        }
+
+        QuickDateFormat quickDateFormat = new QuickDateFormat("MM/dd/yy HH:mm:ss.fff zzz");
+        long reportedDroppedCount = 0;
+
+        while (true) {
+            int count;
+            long droppedCount;
+            try {
+                synchronized (LOCK) {
+                    while (0 == _count) {
+                        LOCK.wait();
+                    }
+
+                    count = _count;
+                    for (int i = 0; i < count; i++) {
+                        int index = (_head + i) % capacity;
+                        owners[i] = _owners[index];
+                        times[i] = _times[index];
+                        lengths[i] = _lengths[index];
+
+                        byte[] text = texts[i];
+                        texts[i] = _texts[index];
+                        _texts[index] = text;
+                        _owners[index] = null;
+                    }
+                    _head = (_head + count) % capacity;
+                    _count = 0;
+                    droppedCount = _droppedCount;
+                }
+            } catch (InterruptedException ex) {
+                return;
+            }
+
+            try {
+                write(owners, times, texts, lengths, count, quickDateFormat);
+            } catch (Exception ex) {
+                AppLog.error("error writing the log", ex);
+            }
+
+            for (int i = 0; i < count; i++) {
+                owners[i] = null;
+            }
+
+            if (reportedDroppedCount != droppedCount) {
+                AppLog.warn(String.format("%d log lines were dropped because the log queue was full",
+                        droppedCount - reportedDroppedCount));
+                reportedDroppedCount = droppedCount;
+            }
+        }
+    }
+
+
+
+    private static void write(AsyncLog[] owners, long[] times, byte[][] texts, int[] lengths, int count,
+            QuickDateFormat quickDateFormat) {
+        for (int i = 0; i < count; i++) {
+            AsyncLog owner = owners[i];
+            String line = new String(texts[i], 0, lengths[i]);
+
+            if (!owner._isFileLog || !owner._started) {
+                // the first line goes through the file log so it can mark the start of the
+                // application
+                owner._target.info(line);
+                owner._started = true;
+                continue;
+            }
+
+            // gather the lines for the file log in the same form that it writes them
+            StringBuilder batch = owner._batch;
+            if (0 < batch.length()) batch.append("\r\n");
+            batch.append(quickDateFormat.format(times[i])).append(", ").append(line);
+        }
+
+        // one write for each file log
+        for (int i = 0; i < count; i++) {
+            StringBuilder batch = owners[i]._batch;
+            if (0 == batch.length()) continue;
+
+            owners[i]._target.writeln(batch.toString());
+            batch.setLength(0);
+        }
+    }
+
+}
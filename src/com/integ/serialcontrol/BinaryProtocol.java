@@ -0,0 +1,294 @@
+package com.integ.serialcontrol;
+
+import java.io.IOException;
+
+/**
+ * The compact binary protocol. A connection switches to it with the ASCII command "binary" and
+ * back with the ascii request below. A udp datagram is binary when it starts with the sync byte.
+ *
+ * Every frame is the sync byte, a length, that many payload bytes and a checksum. The checksum is
+ * the low byte of the sum of the length and payload bytes. Values are big endian and channels are
+ * numbered from 1. The first payload byte is the opcode:
+ *
+ *     0x01 pulse     mask:u16 states:u16 duration:u32   0x81 status:u8 outputs:u16
+ *     0x02 set       mask:u16 states:u16                0x82 status:u8 outputs:u16
+ *     0x03 toggle    mask:u16                           0x83 status:u8 outputs:u16
+ *     0x10 states                                       0x90 inputs:u16 outputs:u16
+ *     0x11 counters  first:u8 count:u8                  0x91 first:u8 count:u8 counter:u32...
+ *     0x7f ascii                                        0xff
+ *
+ *     0xa0 alert     type:u8 channel:u8 state:u8 time:u64 [counter:u32] [suppressed:u16] [seq:u32]
+ *     0xee error     code:u8
+ *
+ * An alert's type is 0 for an input, which also carries its counter, and 1 for an output. The
+ * time is the transition time in milliseconds since the epoch. An alert that follows transitions
+ * held back by the AlertMinInterval rate limit ends with their number. With SendSequence set
+ * every alert ends with that number, 0 if there were none, and the low 32 bits of its journal
+ * sequence number. The status of a relay request is 0 when it was applied. A pulse duration of
+ * 0x80000000 or more is answered with an error.
+ */
+public class BinaryProtocol {
+
+    public static final int SYNC = 0xa5;
+
+    public static final int PULSE = 0x01;
+    public static final int SET = 0x02;
+    public static final int TOGGLE = 0x03;
+    public static final int STATES = 0x10;
+    public static final int COUNTERS = 0x11;
+    public static final int ASCII = 0x7f;
+
+    /* responses have the high bit of their request's opcode set */
+    public static final int RESPONSE = 0x80;
+    public static final int ASCII_RESPONSE = 0xff;
+    public static final int ALERT = 0xa0;
+    public static final int ERROR = 0xee;
+
+    public static final int ALERT_INPUT = 0;
+    public static final int ALERT_OUTPUT = 1;
+
+    public static final int ERROR_CHECKSUM = 1;
+    public static final int ERROR_OPCODE = 2;
+    public static final int ERROR_LENGTH = 3;
+    public static final int ERROR_DURATION = 4;
+
+    /* process results */
+    public static final int CONTINUE = 0;
+    public static final int SWITCH_TO_ASCII = 1;
+
+    /* a counters request may not ask for more channels than this */
+    private static final int MAX_CHANNEL = 32;
+
+    private final RelayAction _relayAction = new RelayAction();
+
+
+
+    /**
+     * checks for a frame at the offset
+     *
+     * @return the length of the whole frame, 0 if more bytes are needed to tell, or -1 if there is
+     * no sync byte at the offset or the checksum does not match
+     */
+    public static int checkFrame(byte[] bytes, int offset, int end) {
+        if (offset >= end) return 0;
+        if (SYNC != (bytes[offset] & 0xff)) return -1;
+        if (offset + 2 > end) return 0;
+
+        int payloadLength = bytes[offset + 1] & 0xff;
+        int frameLength = payloadLength + 3;
+        if (offset + frameLength > end) return 0;
+
+        int checksum = 0;
+        for (int i = offset + 1; i < offset + 2 + payloadLength; i++) {
+            checksum += bytes[i];
+        }
+        return ((checksum & 0xff) == (bytes[offset + frameLength - 1] & 0xff)) ? frameLength : -1;
+    }
+
+
+
+    /**
+     * @return true if the payload is the request to switch back to ASCII
+     */
+    public static boolean isSwitchToAscii(byte[] bytes, int offset, int length) {
+        return 1 == length && ASCII == (bytes[offset] & 0xff);
+    }
+
+
+
+    /**
+     * executes the request in the payload and appends the response frame
+     *
+     * @return CONTINUE or SWITCH_TO_ASCII
+     */
+    public int process(byte[] bytes, int offset, int length, AsciiBuffer out) {
+        if (0 == length) {
+            appendError(out, ERROR_LENGTH);
+            return CONTINUE;
+        }
+
+        int opcode = bytes[offset] & 0xff;
+        switch (opcode) {
+            case PULSE:
+            case SET:
+                if (PULSE == opcode ? 9 != length : 5 != length) break;
+                // JANOS takes the duration as a signed int so the top bit cannot be passed on
+                if (PULSE == opcode && getInt(bytes, offset + 5) < 0) {
+                    appendError(out, ERROR_DURATION);
+                    return CONTINUE;
+                }
+
+                int mask = getShort(bytes, offset + 1);
+                int states = getShort(bytes, offset + 3);
+                _relayAction.reset();
+                _relayAction.close(mask & states);
+                _relayAction.open(mask & ~states);
+                if (PULSE == opcode) {
+                    _relayAction._pulse = true;
+                    _relayAction._duration = getInt(bytes, offset + 5);
+                }
+                appendRelayResponse(out, opcode);
+                return CONTINUE;
+
+            case TOGGLE:
+                if (3 != length) break;
+
+                _relayAction.reset();
+                _relayAction.toggle(getShort(bytes, offset + 1));
+                appendRelayResponse(out, opcode);
+                return CONTINUE;
+
+            case STATES:
+                if (1 != length) break;
+
+                IoBackend ioBackend = IoBackends.get();
+                int start = beginFrame(out, 5);
+                out.appendByte(STATES | RESPONSE);
+                appendShort(out, ioBackend.getInputStates());
+                appendShort(out, ioBackend.getOutputStates());
+                endFrame(out, start);
+                return CONTINUE;
+
+            case COUNTERS:
+                if (3 != length) break;
+
+                int first = bytes[offset + 1] & 0xff;
+                int count = bytes[offset + 2] & 0xff;
+                if (first < 1 || first + count - 1 > MAX_CHANNEL) break;
+
+                appendCounters(out, first, count);
+                return CONTINUE;
+
+            case ASCII:
+                if (1 != length) break;
+
+                start = beginFrame(out, 1);
+                out.appendByte(ASCII_RESPONSE);
+                endFrame(out, start);
+                return SWITCH_TO_ASCII;
+
+            default:
+                appendError(out, ERROR_OPCODE);
+                return CONTINUE;
+        }
+
+        appendError(out, ERROR_LENGTH);
+        return CONTINUE;
+    }
+
+
+
+    /**
+     * appends the frame for an alert.  the suppressed count is only included when it is not 0 or
+     * the sequence number follows it.  the sequence number is only included when it is not 0.
+     */
+    public static void appendAlert(AsciiBuffer out, boolean isInput, int channel, boolean state,
+            long timestamp, int counter, int suppressedCount, long seq) {
+        int payloadLength = isInput ? 16 : 12;
+        if (0 < suppressedCount || 0 != seq) payloadLength += 2;
+        if (0 != seq) payloadLength += 4;
+        int start = beginFrame(out, payloadLength);
+        out.appendByte(ALERT);
+        out.appendByte(isInput ? ALERT_INPUT : ALERT_OUTPUT);
+        out.appendByte(channel);
+        out.appendByte(state ? 1 : 0);
+        appendInt(out, (int) (timestamp >>> 32));
+        appendInt(out, (int) timestamp);
+        if (isInput) appendInt(out, counter);
+        if (0 < suppressedCount || 0 != seq) appendShort(out, Math.min(suppressedCount, 0xffff));
+        if (0 != seq) appendInt(out, (int) seq);
+        endFrame(out, start);
+    }
+
+
+
+    public static void appendError(AsciiBuffer out, int errorCode) {
+        int start = beginFrame(out, 2);
+        out.appendByte(ERROR);
+        out.appendByte(errorCode);
+        endFrame(out, start);
+    }
+
+
+
+    private void appendRelayResponse(AsciiBuffer out, int opcode) {
+        int status = 0;
+        IoBackend ioBackend = IoBackends.get();
+        try {
+            int currentStates = _relayAction.needsCurrentStates() ? ioBackend.getOutputStates() : 0;
+            _relayAction.write(ioBackend, currentStates);
+        } catch (IOException ex) {
+            status = 1;
+        }
+
+        int start = beginFrame(out, 4);
+        out.appendByte(opcode | RESPONSE);
+        out.appendByte(status);
+        appendShort(out, ioBackend.getOutputStates());
+        endFrame(out, start);
+    }
+
+
+
+    private static void appendCounters(AsciiBuffer out, int first, int count) {
+        IoBackend ioBackend = IoBackends.get();
+        int start = beginFrame(out, 3 + 4 * count);
+        out.appendByte(COUNTERS | RESPONSE);
+        out.appendByte(first);
+        out.appendByte(count);
+        for (int i = 0; i < count; i++) {
+            appendInt(out, ioBackend.getInputCounter(first - 1 + i));
+        }
+        endFrame(out, start);
+    }
+
+
+
+    /**
+     * @return where the frame starts so that endFrame can add its checksum
+     */
+    private static int beginFrame(AsciiBuffer out, int payloadLength) {
+        int start = out.getLength();
+        out.appendByte(SYNC);
+        out.appendByte(payloadLength);
+        return start;
+    }
+
+
+
+    private static void endFrame(AsciiBuffer out, int start) {
+        byte[] bytes = out.getBytes();
+        int checksum = 0;
+        for (int i = start + 1; i < out.getLength(); i++) {
+            checksum += bytes[i];
+        }
+        out.appendByte(checksum);
+    }
+
+
+
+    private static void appendShort(AsciiBuffer out, int value) {
+        out.appendByte(value >> 8);
+        out.appendByte(value);
+    }
+
+
+
+    private static void appendInt(AsciiBuffer out, int value) {
+        appendShort(out, value >> 16);
+        appendShort(out, value);
+    }
+
+
+
+    private static int getShort(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 8) | (bytes[offset + 1] & 0xff);
+    }
+
+
+
+    private static int getInt(byte[] bytes, int offset) {
+        return (getShort(bytes, offset) << 16) | getShort(bytes, offset + 2);
+    }
+
+}
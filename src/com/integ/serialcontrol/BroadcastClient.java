@@ -0,0 +1,30 @@
+package com.integ.serialcontrol;
+
+/**
+ * A connection that receives the unsolicited I/O alerts. Clients register with the ClientRegistry
+ * that SerialControlClient.broadcast walks.
+ */
+public interface BroadcastClient {
+
+    /**
+     * queues the alert for the client.  this is called on the thread that is broadcasting and must
+     * not block.
+     */
+    void queueAlert(Frame frame, int channelKey);
+
+
+
+    /**
+     * @return the I/O alerts the client wants
+     */
+    Subscription getSubscription();
+
+
+
+    /**
+     * appends the client's name and its outbound queue, like "client 10.0.0.5:4101 queue depth=0
+     * max=12 dropped=0 coalesced=5"
+     */
+    void appendSummary(AsciiBuffer out);
+
+}
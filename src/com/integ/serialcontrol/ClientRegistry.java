@@ -0,0 +1,92 @@
+package com.integ.serialcontrol;
+
+/**
+ * The connected clients that receive broadcasts. Each client has a slot in an array, and the slot
+ * index is the handle that registering the client returns, so unregistering does not search.
+ * Registering and unregistering take a lock. Broadcasts read the slot array without a lock and
+ * skip the empty slots, so a broadcast never waits on a client connecting or disconnecting.
+ */
+public class ClientRegistry {
+
+    private final Object _lock = new Object();
+
+    /* reassigned after every change so that a broadcast reading it sees the change */
+    private volatile BroadcastClient[] _slots;
+    /* the unused slot indexes.  guarded by _lock */
+    private int[] _freeSlots;
+    private int _freeCount = 0;
+    private volatile int _size = 0;
+
+
+
+    public ClientRegistry(int initialCapacity) {
+        _slots = new BroadcastClient[0];
+        _freeSlots = new int[0];
+        grow(Math.max(1, initialCapacity));
+    }
+
+
+
+    /**
+     * @return the handle to unregister the client with
+     */
+    public int register(BroadcastClient broadcastClient) {
+        synchronized (_lock) {
+            if (0 == _freeCount) grow(2 * _slots.length);
+
+            int handle = _freeSlots[--_freeCount];
+            BroadcastClient[] slots = _slots;
+            slots[handle] = broadcastClient;
+            _size++;
+            _slots = slots;
+            return handle;
+        }
+    }
+
+
+
+    public void unregister(int handle, BroadcastClient broadcastClient) {
+        synchronized (_lock) {
+            BroadcastClient[] slots = _slots;
+            if (handle < 0 || slots.length <= handle || slots[handle] != broadcastClient) return;
+
+            slots[handle] = null;
+            _freeSlots[_freeCount++] = handle;
+            _size--;
+            _slots = slots;
+        }
+    }
+
+
+
+    /**
+     * @return the slot array.  it must not be modified and the unused slots are null.
+     */
+    public BroadcastClient[] getSlots() {
+        return _slots;
+    }
+
+
+
+    public int size() {
+        return _size;
+    }
+
+
+
+    private void grow(int capacity) {
+        BroadcastClient[] slots = new BroadcastClient[capacity];
+        System.arraycopy(_slots, 0, slots, 0, _slots.length);
+
+        int[] freeSlots = new int[capacity];
+        System.arraycopy(_freeSlots, 0, freeSlots, 0, _freeCount);
+        // add the new slots so that the lowest is used first
+        for (int i = capacity - 1; i >= _slots.length; i--) {
+            freeSlots[_freeCount++] = i;
+        }
+
+        _freeSlots = freeSlots;
+        _slots = slots;
+    }
+
+}
@@ -0,0 +1,214 @@
+package com.integ.serialcontrol;
+
+/**
+ * A bounded, least recently used cache of compiled relay commands keyed by the command text.
+ * Lookups work directly on the received bytes so a hit does not allocate. The cached actions are
+ * never modified once they are added so they can be applied outside of the cache lock.
+ */
+public class CommandCache {
+
+    private final int _capacity;
+    private final Entry[] _buckets;
+    /* the sentinel of the recently used list.  _lru._next is the most recently used entry and
+       _lru._prev is the least recently used */
+    private final Entry _lru = new Entry();
+    private int _size = 0;
+
+    private long _hitCount = 0;
+    private long _missCount = 0;
+    private long _evictionCount = 0;
+
+
+
+    private static class Entry {
+
+        byte[] _key;
+        int _hash;
+        RelayAction _relayAction;
+
+        Entry _chainNext;
+        Entry _prev;
+        Entry _next;
+    }
+
+
+
+    public CommandCache(int capacity) {
+        _capacity = Math.max(0, capacity);
+
+        int bucketCount = 1;
+        while (bucketCount < 2 * _capacity) {
+            bucketCount <<= 1;
+        }
+        _buckets = new Entry[bucketCount];
+
+        _lru._prev = _lru;
+        _lru._next = _lru;
+    }
+
+
+
+    /**
+     * @return the compiled action for the command or null if the command is not cached
+     */
+    public synchronized RelayAction get(byte[] bytes, int offset, int length) {
+        int hash = hash(bytes, offset, length);
+        Entry entry = _buckets[hash & (_buckets.length - 1)];
+        while (null != entry) {
+            if (entry._hash == hash && keyEquals(entry._key, bytes, offset, length)) {
+                unlink(entry);
+                linkNewest(entry);
+                _hitCount++;
+                return entry._relayAction;
+            }
+            entry = entry._chainNext;
+        }
+
+        _missCount++;
+        return null;
+    }
+
+
+
+    /**
+     * adds a copy of the compiled action for the command.  the least recently used command is
+     * evicted if the cache is full.
+     */
+    public synchronized void put(byte[] bytes, int offset, int length, RelayAction relayAction) {
+        if (0 == _capacity) return;
+
+        int hash = hash(bytes, offset, length);
+        int bucket = hash & (_buckets.length - 1);
+        for (Entry entry = _buckets[bucket]; null != entry; entry = entry._chainNext) {
+            if (entry._hash == hash && keyEquals(entry._key, bytes, offset, length)) {
+                // another client compiled the same command at the same time
+                return;
+            }
+        }
+
+        if (_size == _capacity) {
+            evict(_lru._prev);
+        }
+
+        Entry entry = new Entry();
+        entry._key = new byte[length];
+        System.arraycopy(bytes, offset, entry._key, 0, length);
+        entry._hash = hash;
+        entry._relayAction = new RelayAction(relayAction);
+
+        entry._chainNext = _buckets[bucket];
+        _buckets[bucket] = entry;
+        linkNewest(entry);
+        _size++;
+    }
+
+
+
+    public synchronized void clear() {
+        for (int i = 0; i < _buckets.length; i++) {
+            _buckets[i] = null;
+        }
+        _lru._prev = _lru;
+        _lru._next = _lru;
+        _size = 0;
+    }
+
+
+
+    public synchronized int size() {
+        return _size;
+    }
+
+
+
+    public int getCapacity() {
+        return _capacity;
+    }
+
+
+
+    public synchronized long getHitCount() {
+        return _hitCount;
+    }
+
+
+
+    public synchronized long getMissCount() {
+        return _missCount;
+    }
+
+
+
+    public synchronized long getEvictionCount() {
+        return _evictionCount;
+    }
+
+
+
+    /**
+     * appends the size and counters, like "cache size=12/64 hits=200 misses=12 evictions=0"
+     */
+    public synchronized void appendSummary(AsciiBuffer out) {
+        out.append("cache size=").append(_size).append('/').append(_capacity);
+        out.append(" hits=").append(_hitCount);
+        out.append(" misses=").append(_missCount);
+        out.append(" evictions=").append(_evictionCount);
+    }
+
+
+
+    private void evict(Entry entry) {
+        unlink(entry);
+
+        int bucket = entry._hash & (_buckets.length - 1);
+        if (_buckets[bucket] == entry) {
+            _buckets[bucket] = entry._chainNext;
+        } else {
+            Entry previous = _buckets[bucket];
+            while (previous._chainNext != entry) {
+                previous = previous._chainNext;
+            }
+            previous._chainNext = entry._chainNext;
+        }
+
+        _size--;
+        _evictionCount++;
+    }
+
+
+
+    private void unlink(Entry entry) {
+        entry._prev._next = entry._next;
+        entry._next._prev = entry._prev;
+    }
+
+
+
+    private void linkNewest(Entry entry) {
+        entry._prev = _lru;
+        entry._next = _lru._next;
+        _lru._next._prev = entry;
+        _lru._next = entry;
+    }
+
+
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+
+
+    private static boolean keyEquals(byte[] key, byte[] bytes, int offset, int length) {
+        if (key.length != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (key[i] != bytes[offset + i]) return false;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,683 @@
+package com.integ.serialcontrol;
+
+import java.io.IOException;
+
+/**
+ * Classifies and executes a received command in a single pass over its bytes. This is shared by
+ * the serial, tcp and udp clients. Relay commands are handed to Jrmon and queries are answered in
+ * a reusable reply buffer that the client then sends. A dispatcher is not thread safe, each client
+ * owns one.
+ *
+ * A command may start with a tag in the form "#abc " that is echoed at the start of its reply, so a
+ * client can send many commands without waiting and match the replies as they arrive. A relay
+ * command normally has no reply. When it is tagged, or RelayAcks is enabled, it is acknowledged
+ * with "ok outputs=XXXXXXXX" or "error outputs=XXXXXXXX" and the output states after it ran.
+ */
+public class CommandDispatcher {
+
+    /* the command was handled and there is nothing to send back */
+    public static final int NO_REPLY = 0;
+    /* the reply buffer holds a response to send back */
+    public static final int REPLY = 1;
+    /* the reply buffer holds a response and the connection switches to the binary protocol after
+       sending it */
+    public static final int SWITCH_TO_BINARY = 2;
+
+    private final Jrmon _jrmon = new Jrmon();
+    private final AsciiBuffer _reply = new AsciiBuffer(64);
+    private byte[] _command = new byte[32];
+    /* the counters read by all? before its reply is built */
+    private int[] _counters = new int[0];
+    private int _commandLength = 0;
+    private boolean _failed = false;
+    /* the alerts the connection receives.  null for a client without a connection, like udp */
+    private Subscription _subscription = null;
+
+
+
+    public AsciiBuffer getReply() {
+        return _reply;
+    }
+
+
+
+    /**
+     * sets the subscription that the sub command shows and changes
+     */
+    public void setSubscription(Subscription subscription) {
+        _subscription = subscription;
+    }
+
+
+
+    /**
+     * @return true if the last command was not recognized or was not a valid relay command
+     */
+    public boolean isFailed() {
+        return _failed;
+    }
+
+
+
+    /**
+     * @return NO_REPLY, REPLY or SWITCH_TO_BINARY.  the reply is available from getReply until the
+     * next dispatch
+     */
+    public int dispatch(byte[] bytes, int offset, int length) throws IOException {
+        _reply.reset();
+        _failed = false;
+
+        //
+        // pick off the tag if there is one and start the reply with it
+        int end = offset + length;
+        int begin = offset;
+        while (begin < end && bytes[begin] <= ' ') {
+            begin++;
+        }
+        boolean tagged = begin < end && '#' == bytes[begin];
+        if (tagged) {
+            int tagEnd = begin + 1;
+            while (tagEnd < end && bytes[tagEnd] > ' ') {
+                tagEnd++;
+            }
+            _reply.append(bytes, begin, tagEnd - begin).append(' ');
+            offset = tagEnd;
+            while (offset < end && bytes[offset] <= ' ') {
+                offset++;
+            }
+            length = end - offset;
+        }
+
+        int result = dispatchCommand(bytes, offset, length);
+
+        // only a relay command has no reply
+        if (NO_REPLY == result && (tagged || Config.getRelayAcks())) {
+            _reply.append(_failed ? "error" : "ok").append(" outputs=")
+                    .appendHex(IoBackends.get().getOutputStates(), 8);
+            return REPLY;
+        }
+        return result;
+    }
+
+
+
+    /**
+     * @return true if the command, with or without a tag, is the switch to the binary protocol.  a
+     * reader uses this to frame what follows before the command has run.
+     */
+    public static boolean isSwitchToBinary(byte[] bytes, int offset, int length) {
+        int begin = offset;
+        int end = offset + length;
+        while (begin < end && bytes[begin] <= ' ') {
+            begin++;
+        }
+        if (begin < end && '#' == bytes[begin]) {
+            while (begin < end && bytes[begin] > ' ') {
+                begin++;
+            }
+            while (begin < end && bytes[begin] <= ' ') {
+                begin++;
+            }
+        }
+        while (end > begin && bytes[end - 1] <= ' ') {
+            end--;
+        }
+
+        String word = "binary";
+        if (end - begin != word.length()) return false;
+        for (int i = 0; i < word.length(); i++) {
+            byte b = bytes[begin + i];
+            if (word.charAt(i) != (('A' <= b && b <= 'Z') ? b + ('a' - 'A') : b)) return false;
+        }
+        return true;
+    }
+
+
+
+    private int dispatchCommand(byte[] bytes, int offset, int length) throws IOException {
+        copyCommand(bytes, offset, length);
+
+        if (0 < _commandLength && '?' == _command[_commandLength - 1]) {
+            //
+            // is it a query for input status?
+            int channelNumber = getQueryChannel("din");
+            if (0 < channelNumber) {
+                IoBackend ioBackend = IoBackends.get();
+                int state = (ioBackend.getInputStates() >> (channelNumber - 1)) & 1;
+                _reply.append("din").append(channelNumber).append('=').append(state);
+                if (Config.getSendCounts()) {
+                    _reply.append(',').append(ioBackend.getInputCounter(channelNumber - 1));
+                }
+                return REPLY;
+            }
+
+            //
+            // is it a query for output status?
+            channelNumber = getQueryChannel("rout");
+            if (0 < channelNumber) {
+                int state = (IoBackends.get().getOutputStates() >> (channelNumber - 1)) & 1;
+                _reply.append("rout").append(channelNumber).append('=').append(state);
+                return REPLY;
+            }
+
+            //
+            // is it a bulk query?  the states are hex bitmasks with channel 1 in the lowest bit
+            if (isCommand("din?")) {
+                appendInputStates(IoBackends.get().getInputStates());
+                return REPLY;
+            }
+            if (isCommand("rout?")) {
+                appendOutputStates(IoBackends.get().getOutputStates());
+                return REPLY;
+            }
+            if (isCommand("io?")) {
+                // read both before building the reply so that they are as close together as we
+                // can get them.  the mirror has both from the same moment
+                IoBackend ioBackend = IoBackends.get();
+                int inputStates;
+                int outputStates;
+                if (ioBackend instanceof IoStateMirror) {
+                    IoStateMirror.State state = ((IoStateMirror) ioBackend).getState();
+                    inputStates = state.InputStates;
+                    outputStates = state.OutputStates;
+                } else {
+                    inputStates = ioBackend.getInputStates();
+                    outputStates = ioBackend.getOutputStates();
+                }
+                appendInputStates(inputStates);
+                _reply.append(',');
+                appendOutputStates(outputStates);
+                return REPLY;
+            }
+            if (isCommand("stats?")) {
+                _reply.append("stats ");
+                LatencyStats.appendSummary(_reply);
+                _reply.append(';');
+                CommandExecutor.appendSummary(_reply);
+                _reply.append(';');
+                Jrmon.getCommandCache().appendSummary(_reply);
+                SerialControlClient.appendClientSummaries(_reply);
+                IoBackend ioBackend = IoBackends.get();
+                if (ioBackend instanceof IoStateMirror) {
+                    IoStateMirror ioStateMirror = (IoStateMirror) ioBackend;
+                    _reply.append(";mirror reconciled=").append(ioStateMirror.getReconcileCount())
+                            .append(" drift=").append(ioStateMirror.getDriftCount());
+                }
+                return REPLY;
+            }
+            if (isCommand("sub?")) {
+                return appendSubscription();
+            }
+            if (isCommand("seq?")) {
+                _reply.append("seq ");
+                SequenceEngine.get().appendStatus(_reply);
+                return REPLY;
+            }
+            if (isCommand("counts?")) {
+                // the mirror's counters are all from the same moment
+                IoBackend ioBackend = IoBackends.get();
+                IoStateMirror.State state = (ioBackend instanceof IoStateMirror)
+                        ? ((IoStateMirror) ioBackend).getState() : null;
+                appendCounters(state, ioBackend);
+                return REPLY;
+            }
+            if (isCommand("all?")) {
+                // the states and counters in one reply, like "din=0005,rout=0002,counts=3,0,7".  with
+                // the mirror they all come from one State, otherwise they are read in one pass
+                // before the reply is built
+                IoBackend ioBackend = IoBackends.get();
+                IoStateMirror.State state = (ioBackend instanceof IoStateMirror)
+                        ? ((IoStateMirror) ioBackend).getState() : null;
+                if (null != state) {
+                    appendInputStates(state.InputStates);
+                    _reply.append(',');
+                    appendOutputStates(state.OutputStates);
+                    _reply.append(',');
+                    appendCounters(state, ioBackend);
+                } else {
+                    int inputStates = ioBackend.getInputStates();
+                    int outputStates = ioBackend.getOutputStates();
+                    int inputCount = Config.getInputCount();
+                    if (_counters.length < inputCount) _counters = new int[inputCount];
+                    for (int i = 0; i < inputCount; i++) {
+                        _counters[i] = ioBackend.getInputCounter(i);
+                    }
+                    appendInputStates(inputStates);
+                    _reply.append(',');
+                    appendOutputStates(outputStates);
+                    _reply.append(",counts=");
+                    for (int i = 0; i < inputCount; i++) {
+                        if (0 < i) _reply.append(',');
+                        _reply.append(_counters[i]);
+                    }
+                }
+                return REPLY;
+            }
+
+        } else if (isCommand("sub") || startsWith("sub ")) {
+            return subscribe();
+
+        } else if (startsWith("since ")) {
+            return since();
+
+        } else if (startsWith("seq ")) {
+            return sequence();
+
+        } else if (isCommand("binary")) {
+            _reply.append("binary");
+            return SWITCH_TO_BINARY;
+
+        } else if (isMacroCommand()) {
+            // a macro is a relay command list that was compiled when the configuration was loaded
+            Macro macro = Config.getMacro(parseDecimal(1, _commandLength));
+            _failed = null == macro;
+            if (null != macro) macro.apply(IoBackends.get());
+            return NO_REPLY;
+
+        } else if (isRelayCommand()) {
+            _failed = !_jrmon.execute(_command, 0, _commandLength);
+            return NO_REPLY;
+        }
+
+        _failed = true;
+        _reply.append("unknown command: '").append(bytes, offset, length).append('\'');
+        return REPLY;
+    }
+
+
+
+    /**
+     * changes the subscription with the space separated settings after "sub":  all, none,
+     * din=mask, rout=mask and counts=on|off|default.  the masks are hex with channel 1 in the
+     * lowest bit.  the settings are checked before any of them are applied.
+     */
+    private int subscribe() {
+        if (null == _subscription) return appendNoSubscription();
+
+        int inputMask = _subscription.getInputMask();
+        int outputMask = _subscription.getOutputMask();
+        int counts = _subscription.getCounts();
+
+        int i = 3;
+        while (i < _commandLength) {
+            if (' ' == _command[i]) {
+                i++;
+                continue;
+            }
+            int end = i;
+            while (end < _commandLength && ' ' != _command[end]) {
+                end++;
+            }
+
+            if (isWord(i, end, "all")) {
+                inputMask = -1;
+                outputMask = -1;
+            } else if (isWord(i, end, "none")) {
+                inputMask = 0;
+                outputMask = 0;
+            } else if (isWord(i, end, "counts=on")) {
+                counts = Subscription.COUNTS_ON;
+            } else if (isWord(i, end, "counts=off")) {
+                counts = Subscription.COUNTS_OFF;
+            } else if (isWord(i, end, "counts=default")) {
+                counts = Subscription.COUNTS_DEFAULT;
+            } else if (startsWith(i, end, "din=") && isHex(i + 4, end)) {
+                inputMask = parseHex(i + 4, end);
+            } else if (startsWith(i, end, "rout=") && isHex(i + 5, end)) {
+                outputMask = parseHex(i + 5, end);
+            } else {
+                _failed = true;
+                _reply.append("invalid subscription: '").append(_command, i, end - i).append('\'');
+                return REPLY;
+            }
+            i = end;
+        }
+
+        _subscription.setInputMask(inputMask);
+        _subscription.setOutputMask(outputMask);
+        _subscription.setCounts(counts);
+        return appendSubscription();
+    }
+
+
+
+    /**
+     * handles "since seq", replying with the transitions after the sequence number that the
+     * connection subscribes to
+     */
+    private int since() {
+        int begin = skipSpaces(6);
+        if (begin == _commandLength || 18 < _commandLength - begin || !isDecimal(begin, _commandLength)) {
+            _failed = true;
+            _reply.append("invalid sequence number: '").append(_command, begin, _commandLength - begin)
+                    .append('\'');
+            return REPLY;
+        }
+
+        long seq = 0;
+        for (int i = begin; i < _commandLength; i++) {
+            seq = seq * 10 + (_command[i] - '0');
+        }
+        EventJournal.appendSince(_reply, seq, _subscription);
+        return REPLY;
+    }
+
+
+
+    /**
+     * handles "seq name" to start the sequence named in the registry, "seq name steps" to start
+     * the given steps under the name, and "seq stop name" or "seq stop *" to stop them
+     */
+    private int sequence() {
+        int nameBegin = skipSpaces(4);
+        int nameEnd = skipWord(nameBegin);
+        if (nameBegin == nameEnd) return appendInvalidSequence(nameBegin, _commandLength);
+        String name = new String(_command, nameBegin, nameEnd - nameBegin);
+        int stepsBegin = skipSpaces(nameEnd);
+
+        if ("stop".equals(name)) {
+            int stopEnd = skipWord(stepsBegin);
+            if (stepsBegin == stopEnd || stopEnd != _commandLength) {
+                return appendInvalidSequence(stepsBegin, _commandLength);
+            }
+            if (isWord(stepsBegin, stopEnd, "*")) {
+                _reply.append("seq stopped=").append(SequenceEngine.get().stopAll());
+                return REPLY;
+            }
+            name = new String(_command, stepsBegin, stopEnd - stepsBegin);
+            _reply.append("seq ").append(name)
+                    .append(SequenceEngine.get().stop(name) ? " stopped" : " not running");
+            return REPLY;
+        }
+
+        Sequence sequence;
+        if (stepsBegin == _commandLength) {
+            String steps = Config.getSequenceSteps(name);
+            if (null == steps) {
+                _failed = true;
+                _reply.append("unknown sequence: '").append(name).append('\'');
+                return REPLY;
+            }
+            byte[] stepBytes = steps.toLowerCase().getBytes();
+            sequence = Sequence.compile(stepBytes, 0, stepBytes.length);
+            if (null == sequence) {
+                _failed = true;
+                _reply.append("invalid sequence: '").append(steps).append('\'');
+                return REPLY;
+            }
+        } else {
+            sequence = Sequence.compile(_command, stepsBegin, _commandLength - stepsBegin);
+            if (null == sequence) return appendInvalidSequence(stepsBegin, _commandLength);
+        }
+
+        if (!SequenceEngine.get().start(name, sequence)) {
+            _failed = true;
+            _reply.append("too many sequences running");
+            return REPLY;
+        }
+        _reply.append("seq ").append(name).append(" started");
+        return REPLY;
+    }
+
+
+
+    private int appendInvalidSequence(int begin, int end) {
+        _failed = true;
+        _reply.append("invalid sequence: '").append(_command, begin, end - begin).append('\'');
+        return REPLY;
+    }
+
+
+
+    /**
+     * @return the index of the first character at or after the index that is not a space
+     */
+    private int skipSpaces(int index) {
+        while (index < _commandLength && ' ' == _command[index]) {
+            index++;
+        }
+        return index;
+    }
+
+
+
+    /**
+     * @return the index of the first space at or after the index, or the end of the command
+     */
+    private int skipWord(int index) {
+        while (index < _commandLength && ' ' != _command[index]) {
+            index++;
+        }
+        return index;
+    }
+
+
+
+    private int appendSubscription() {
+        if (null == _subscription) return appendNoSubscription();
+
+        _reply.append("sub ");
+        appendInputStates(_subscription.getInputMask());
+        _reply.append(',');
+        appendOutputStates(_subscription.getOutputMask());
+        _reply.append(",counts=").append(_subscription.includesCounts() ? "on" : "off");
+        return REPLY;
+    }
+
+
+
+    private int appendNoSubscription() {
+        _failed = true;
+        _reply.append("subscriptions need a connection");
+        return REPLY;
+    }
+
+
+
+    private void appendInputStates(int inputStates) {
+        _reply.append("din=").appendHex(inputStates, getHexDigitCount(Config.getInputCount()));
+    }
+
+
+
+    private void appendOutputStates(int outputStates) {
+        _reply.append("rout=").appendHex(outputStates, getHexDigitCount(Config.getOutputCount()));
+    }
+
+
+
+    /**
+     * appends "counts=" and every input's counter, from the state if there is one
+     */
+    private void appendCounters(IoStateMirror.State state, IoBackend ioBackend) {
+        _reply.append("counts=");
+        int inputCount = Config.getInputCount();
+        for (int i = 0; i < inputCount; i++) {
+            if (0 < i) _reply.append(',');
+            _reply.append((null != state) ? state.getInputCounter(i) : ioBackend.getInputCounter(i));
+        }
+    }
+
+
+
+    /**
+     * @return the number of hex digits needed for a bitmask of the channels
+     */
+    private static int getHexDigitCount(int channelCount) {
+        return Math.max(1, Math.min(8, (channelCount + 3) / 4));
+    }
+
+
+
+    /**
+     * copies the command into the reusable command buffer in lower case, without the leading and
+     * trailing white space or control characters that a multi-byte termination can leave behind
+     */
+    private void copyCommand(byte[] bytes, int offset, int length) {
+        int begin = offset;
+        int end = offset + length;
+        while (begin < end && bytes[begin] <= ' ') {
+            begin++;
+        }
+        while (end > begin && bytes[end - 1] <= ' ') {
+            end--;
+        }
+
+        _commandLength = end - begin;
+        if (_command.length < _commandLength) {
+            _command = new byte[_commandLength];
+        }
+        for (int i = 0; i < _commandLength; i++) {
+            byte b = bytes[begin + i];
+            _command[i] = ('A' <= b && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+        }
+    }
+
+
+
+    /**
+     * @return the channel number of a query in the form of the prefix, the channel number and a
+     * '?', or 0 if the command is not that query
+     */
+    private int getQueryChannel(String prefix) {
+        int prefixLength = prefix.length();
+        // there must be at least one digit between the prefix and the '?'
+        if (_commandLength < prefixLength + 2) return 0;
+
+        for (int i = 0; i < prefixLength; i++) {
+            if (prefix.charAt(i) != _command[i]) return 0;
+        }
+
+        int channelNumber = 0;
+        for (int i = prefixLength; i < _commandLength - 1; i++) {
+            byte b = _command[i];
+            if (b < '0' || '9' < b || channelNumber > 32) return 0;
+            channelNumber = channelNumber * 10 + (b - '0');
+        }
+        return (channelNumber <= 32) ? channelNumber : 0;
+    }
+
+
+
+    /**
+     * @return true if the command is the given word
+     */
+    private boolean isCommand(String word) {
+        if (_commandLength != word.length()) return false;
+
+        for (int i = 0; i < _commandLength; i++) {
+            if (word.charAt(i) != _command[i]) return false;
+        }
+        return true;
+    }
+
+
+
+    /**
+     * @return true if the command starts with the given prefix
+     */
+    private boolean startsWith(String prefix) {
+        return startsWith(0, _commandLength, prefix);
+    }
+
+
+
+    private boolean startsWith(int begin, int end, String prefix) {
+        if (end - begin < prefix.length()) return false;
+
+        for (int i = 0; i < prefix.length(); i++) {
+            if (prefix.charAt(i) != _command[begin + i]) return false;
+        }
+        return true;
+    }
+
+
+
+    private boolean isWord(int begin, int end, String word) {
+        return end - begin == word.length() && startsWith(begin, end, word);
+    }
+
+
+
+    /**
+     * @return true if the command bytes are one to eight hex digits
+     */
+    private boolean isHex(int begin, int end) {
+        if (end <= begin || 8 < end - begin) return false;
+
+        for (int i = begin; i < end; i++) {
+            byte b = _command[i];
+            if (!('0' <= b && b <= '9') && !('a' <= b && b <= 'f')) return false;
+        }
+        return true;
+    }
+
+
+
+    private int parseHex(int begin, int end) {
+        int value = 0;
+        for (int i = begin; i < end; i++) {
+            byte b = _command[i];
+            value = (value << 4) | (('0' <= b && b <= '9') ? b - '0' : b - 'a' + 10);
+        }
+        return value;
+    }
+
+
+
+    /**
+     * @return true if the command is "m" and a macro number
+     */
+    private boolean isMacroCommand() {
+        if (_commandLength < 2 || 6 < _commandLength || 'm' != _command[0]) return false;
+        return isDecimal(1, _commandLength);
+    }
+
+
+
+    private boolean isDecimal(int begin, int end) {
+        for (int i = begin; i < end; i++) {
+            if (_command[i] < '0' || '9' < _command[i]) return false;
+        }
+        return true;
+    }
+
+
+
+    private int parseDecimal(int begin, int end) {
+        int value = 0;
+        for (int i = begin; i < end; i++) {
+            value = value * 10 + (_command[i] - '0');
+        }
+        return value;
+    }
+
+
+
+    /**
+     * @return true if the command only contains the characters of a jrmon relay command
+     */
+    private boolean isRelayCommand() {
+        if (0 == _commandLength) return false;
+
+        for (int i = 0; i < _commandLength; i++) {
+            switch (_command[i]) {
+                case 'c':
+                case 'o':
+                case 'p':
+                case 't':
+                case '+':
+                case '*':
+                case '=':
+                case ',':
+                case ' ':
+                    break;
+
+                default:
+                    if (_command[i] < '0' || '9' < _command[i]) return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,170 @@
+package com.integ.serialcontrol;
+
+import java.util.ArrayList;
+
+/**
+ * A fixed set of threads that run the commands in the clients' CommandQueues. There are
+ * CommandThreads of them, which bounds how many commands are calling into JANOS at once no matter
+ * how many clients are connected. A queue with commands waits on the ready list and an executor
+ * thread runs one command from it before putting it back at the end of the list, so a client
+ * that sends a lot of commands does not hold up the others and a client's commands never run on
+ * two threads at once.
+ */
+public class CommandExecutor {
+
+    private static final Object LOCK = new Object();
+
+    /* the queues that have commands and are not being run.  guarded by LOCK */
+    private static final ArrayList<CommandQueue> READY = new ArrayList<>();
+    /* every open queue, for the stats.  guarded by LOCK */
+    private static final ArrayList<CommandQueue> QUEUES = new ArrayList<>();
+    private static Thread[] _threads = null;
+
+    /* guarded by LOCK */
+    private static int _depth = 0;
+    private static int _maxDepth = 0;
+    private static long _executedCount = 0;
+    private static long _blockedCount = 0;
+
+
+
+    /**
+     * @return true if commands are run by the executor rather than the thread that read them
+     */
+    public static boolean isEnabled() {
+        return 0 < Config.getCommandThreads();
+    }
+
+
+
+    /**
+     * starts the executor threads if there are supposed to be any.  the number of threads is only
+     * read once.
+     */
+    static void start() {
+        synchronized (LOCK) {
+            int threadCount = Config.getCommandThreads();
+            if (null != _threads || 0 >= threadCount) return;
+
+            _threads = new Thread[threadCount];
+            for (int i = 0; i < threadCount; i++) {
+                _threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runCommands();
+                    }
+                });
+                _threads[i].setName("SerialControl-CommandExecutor-" + i);
+                _threads[i].setDaemon(true);
+                _threads[i].start();
+            }
+        }
+    }
+
+
+
+    /**
+     * appends the queue depth across the clients, like "commands depth=0 max=5 executed=120
+     * blocked=2", and then each client's queue after a ';'.  blocked counts the times a reader had
+     * to wait for room in its queue.
+     */
+    public static void appendSummary(AsciiBuffer out) {
+        CommandQueue[] queues;
+        synchronized (LOCK) {
+            out.append("commands depth=").append(_depth);
+            out.append(" max=").append(_maxDepth);
+            out.append(" executed=").append(_executedCount);
+            out.append(" blocked=").append(_blockedCount);
+            queues = new CommandQueue[QUEUES.size()];
+            for (int i = 0; i < queues.length; i++) {
+                queues[i] = QUEUES.get(i);
+            }
+        }
+
+        // a queue calls in here holding its own lock so it is not asked while holding LOCK
+        for (int i = 0; i < queues.length; i++) {
+            out.append(';');
+            queues[i].appendSummary(out);
+        }
+    }
+
+
+
+    static void register(CommandQueue commandQueue) {
+        synchronized (LOCK) {
+            QUEUES.add(commandQueue);
+        }
+    }
+
+
+
+    static void unregister(CommandQueue commandQueue) {
+        synchronized (LOCK) {
+            QUEUES.remove(commandQueue);
+        }
+    }
+
+
+
+    static void schedule(CommandQueue commandQueue) {
+        synchronized (LOCK) {
+            READY.add(commandQueue);
+            LOCK.notify();
+        }
+    }
+
+
+
+    static void commandQueued() {
+        synchronized (LOCK) {
+            _depth++;
+            if (_maxDepth < _depth) _maxDepth = _depth;
+        }
+    }
+
+
+
+    static void commandDone() {
+        synchronized (LOCK) {
+            _depth--;
+            _executedCount++;
+        }
+    }
+
+
+
+    static void commandsDropped(int count) {
+        synchronized (LOCK) {
+            _depth -= count;
+        }
+    }
+
+
+
+    static void readerBlocked() {
+        synchronized (LOCK) {
+            _blockedCount++;
+        }
+    }
+
+
+
+    private static void runCommands() {
+        while (true) {
+            CommandQueue commandQueue;
+            try {
+                synchronized (LOCK) {
+                    while (0 == READY.size()) {
+                        LOCK.wait();
+                    }
+                    commandQueue = READY.remove(0);
+                }
+            } catch (InterruptedException ex) {
+                return;
+            }
+
+            if (commandQueue.runNext()) schedule(commandQueue);
+        }
+    }
+
+}
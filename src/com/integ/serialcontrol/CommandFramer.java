@@ -0,0 +1,151 @@
+package com.integ.serialcontrol;
+
+import java.io.IOException;
+
+/**
+ * Splits the bytes received on a stream connection into commands. In ASCII mode a command ends
+ * with the incoming termination. In binary mode the stream is a series of BinaryProtocol frames.
+ * The listener can switch the mode while it handles a command and the bytes after that command
+ * are then framed in the new mode. A framer is not thread safe, each connection owns one.
+ */
+public class CommandFramer {
+
+    /* a command longer than this without a termination is discarded */
+    private static final int MAX_COMMAND_LENGTH = 4096;
+
+    private final Listener _listener;
+
+    /* the received bytes that do not yet make up a whole command */
+    private byte[] _buffer = new byte[256];
+    private int _length = 0;
+    private boolean _binary = false;
+
+
+
+    public interface Listener {
+
+        /**
+         * an ASCII command without its termination
+         */
+        void commandReceived(byte[] bytes, int offset, int length) throws IOException;
+
+
+
+        /**
+         * the payload of a binary frame whose checksum matched
+         */
+        void binaryFrameReceived(byte[] bytes, int offset, int length) throws IOException;
+
+
+
+        /**
+         * a binary frame was dropped because its checksum did not match
+         */
+        void binaryFrameRejected() throws IOException;
+    }
+
+
+
+    public CommandFramer(Listener listener) {
+        _listener = listener;
+    }
+
+
+
+    public boolean isBinary() {
+        return _binary;
+    }
+
+
+
+    public void setBinary(boolean binary) {
+        _binary = binary;
+    }
+
+
+
+    /**
+     * adds the received bytes and hands every complete command to the listener
+     */
+    public void received(byte[] bytes, int offset, int length) throws IOException {
+        if (_length + length > MAX_COMMAND_LENGTH) {
+            // there is no termination coming, drop what has been received
+            _length = 0;
+            if (length > MAX_COMMAND_LENGTH) return;
+        }
+        if (_buffer.length < _length + length) {
+            byte[] buffer = new byte[Math.max(2 * _buffer.length, _length + length)];
+            System.arraycopy(_buffer, 0, buffer, 0, _length);
+            _buffer = buffer;
+        }
+        System.arraycopy(bytes, offset, _buffer, _length, length);
+        _length += length;
+
+        int begin = 0;
+        try {
+            while (begin < _length) {
+                int consumed = _binary ? nextBinaryFrame(begin) : nextAsciiCommand(begin);
+                if (0 == consumed) break;
+                begin += consumed;
+            }
+        } finally {
+            // keep the partial command at the front of the buffer
+            _length -= begin;
+            System.arraycopy(_buffer, begin, _buffer, 0, _length);
+        }
+    }
+
+
+
+    /**
+     * @return the number of bytes used, 0 if the command is not complete yet
+     */
+    private int nextAsciiCommand(int begin) throws IOException {
+        byte[] terminationBytes = Config.getIncomingTerminationBytes();
+        int end = indexOf(_buffer, begin, _length, terminationBytes);
+        if (-1 == end) return 0;
+
+        _listener.commandReceived(_buffer, begin, end - begin);
+        return end - begin + terminationBytes.length;
+    }
+
+
+
+    /**
+     * @return the number of bytes used, 0 if the frame is not complete yet
+     */
+    private int nextBinaryFrame(int begin) throws IOException {
+        int frameLength = BinaryProtocol.checkFrame(_buffer, begin, _length);
+        if (0 == frameLength) return 0;
+
+        if (-1 == frameLength) {
+            // skip to the next sync byte.  a bad checksum is reported, other noise is not
+            boolean wasSync = BinaryProtocol.SYNC == (_buffer[begin] & 0xff);
+            int next = begin + 1;
+            while (next < _length && BinaryProtocol.SYNC != (_buffer[next] & 0xff)) {
+                next++;
+            }
+            if (wasSync) _listener.binaryFrameRejected();
+            return next - begin;
+        }
+
+        _listener.binaryFrameReceived(_buffer, begin + 2, frameLength - 3);
+        return frameLength;
+    }
+
+
+
+    static int indexOf(byte[] bytes, int offset, int end, byte[] pattern) {
+        if (0 == pattern.length) return -1;
+
+        for (int i = offset; i <= end - pattern.length; i++) {
+            int j = 0;
+            while (j < pattern.length && bytes[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) return i;
+        }
+        return -1;
+    }
+
+}
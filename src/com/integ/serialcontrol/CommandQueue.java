@@ -0,0 +1,201 @@
+package com.integ.serialcontrol;
+
+import com.integ.common.logging.AppLog;
+
+/**
+ * The commands one client has read but not yet executed. The client's reader adds them and the
+ * CommandExecutor threads run them, one at a time and in the order they were read, so a slow JANOS
+ * call does not stop the client from reading. The queue is bounded. A reader that fills it waits
+ * until there is room again, which in turn stops it reading and lets tcp flow control slow the
+ * peer down. Each entry's buffer is kept and reused so adding a command does not allocate once the
+ * buffers are large enough.
+ */
+public class CommandQueue {
+
+    /* the kinds of entry.  what they mean is up to the handler */
+    public static final int ASCII = 0;
+    public static final int BINARY = 1;
+    public static final int REJECTED = 2;
+
+    private final String _name;
+    private final Handler _handler;
+
+    private final int[] _kinds;
+    private final byte[][] _buffers;
+    private final int[] _lengths;
+    private final long[] _receivedTimes;
+    private int _head = 0;
+    private int _count = 0;
+    private boolean _closed = false;
+
+    /* true while the queue is waiting for or being run by an executor thread */
+    private boolean _scheduled = false;
+
+    private int _maxDepth = 0;
+    private long _blockedCount = 0;
+
+
+
+    public interface Handler {
+
+        /**
+         * executes a command.  the bytes are only valid for the duration of the call.
+         *
+         * @param receivedTime when the bytes holding the command were read
+         */
+        void execute(int kind, byte[] bytes, int length, long receivedTime);
+    }
+
+
+
+    /**
+     * @param name the client's name for the stats
+     */
+    public CommandQueue(String name, int capacity, Handler handler) {
+        capacity = Math.max(1, capacity);
+        _name = name;
+        _handler = handler;
+        _kinds = new int[capacity];
+        _buffers = new byte[capacity][];
+        _lengths = new int[capacity];
+        _receivedTimes = new long[capacity];
+        for (int i = 0; i < capacity; i++) {
+            _buffers[i] = new byte[64];
+        }
+        CommandExecutor.register(this);
+    }
+
+
+
+    /**
+     * copies the command into the queue, waiting while the queue is full
+     *
+     * @return false if the queue has been closed
+     */
+    public boolean submit(int kind, byte[] bytes, int offset, int length, long receivedTime)
+            throws InterruptedException {
+        boolean schedule = false;
+        synchronized (this) {
+            if (_count == _kinds.length && !_closed) {
+                _blockedCount++;
+                CommandExecutor.readerBlocked();
+                do {
+                    wait();
+                } while (_count == _kinds.length && !_closed);
+            }
+            if (_closed) return false;
+
+            int index = (_head + _count) % _kinds.length;
+            if (_buffers[index].length < length) _buffers[index] = new byte[length];
+            System.arraycopy(bytes, offset, _buffers[index], 0, length);
+            _kinds[index] = kind;
+            _lengths[index] = length;
+            _receivedTimes[index] = receivedTime;
+            _count++;
+            if (_maxDepth < _count) _maxDepth = _count;
+            CommandExecutor.commandQueued();
+
+            if (!_scheduled) {
+                _scheduled = true;
+                schedule = true;
+            }
+        }
+
+        if (schedule) CommandExecutor.schedule(this);
+        return true;
+    }
+
+
+
+    /**
+     * runs the command at the head of the queue.  this is only called by the executor thread that
+     * took the queue off of the ready list, so the head entry is not touched by anyone else.
+     *
+     * @return true if there are more commands and the queue should be scheduled again
+     */
+    boolean runNext() {
+        synchronized (this) {
+            if (0 == _count || _closed) return finish();
+        }
+
+        try {
+            _handler.execute(_kinds[_head], _buffers[_head], _lengths[_head], _receivedTimes[_head]);
+        } catch (RuntimeException ex) {
+            AppLog.error("error executing a command", ex);
+        }
+
+        synchronized (this) {
+            _head = (_head + 1) % _kinds.length;
+            _count--;
+            CommandExecutor.commandDone();
+            // let a reader that was waiting for room go on
+            notifyAll();
+
+            if (0 == _count || _closed) return finish();
+            return true;
+        }
+    }
+
+
+
+    /**
+     * takes the queue off of the executor, dropping what is left if it was closed.  this queue's
+     * lock must be held.
+     *
+     * @return false
+     */
+    private boolean finish() {
+        CommandExecutor.commandsDropped(_count);
+        _count = 0;
+        _scheduled = false;
+        return false;
+    }
+
+
+
+    /**
+     * drops the commands that have not run and lets a waiting reader go.  the executor drops them
+     * the next time it gets to the queue.
+     */
+    public void close() {
+        synchronized (this) {
+            _closed = true;
+            notifyAll();
+        }
+        CommandExecutor.unregister(this);
+    }
+
+
+
+    public synchronized int getDepth() {
+        return _count;
+    }
+
+
+
+    public synchronized int getMaxDepth() {
+        return _maxDepth;
+    }
+
+
+
+    /**
+     * @return the number of times the reader had to wait because the queue was full
+     */
+    public synchronized long getBlockedCount() {
+        return _blockedCount;
+    }
+
+
+
+    /**
+     * appends the client's depth, like "commands 10.0.0.5:4101 depth=1 max=4 blocked=0"
+     */
+    public synchronized void appendSummary(AsciiBuffer out) {
+        out.append("commands ").append(_name);
+        out.append(" depth=").append(_count);
+        out.append(" max=").append(_maxDepth);
+        out.append(" blocked=").append(_blockedCount);
+    }
+
+}
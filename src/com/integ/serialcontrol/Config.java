@@ -1,60 +1,347 @@
 package com.integ.serialcontrol;
 
+import com.integ.common.logging.AppLog;
 import com.integ.common.system.Application;
 import com.integ.common.utils.RegistryUtils;
-
+import com.integpg.system.JANOS;
+
+/**
+ * The application configuration from the registry. The values are read once into an immutable
+ * snapshot so the hot paths do not go to the registry. A watcher thread checks the last modified
+ * time of the AppData/SerialControl node and swaps in a new snapshot when a key changes. The port
+ * and queue settings are only used at start-up so changing those still needs a restart.
+ */
 public class Config {
 
     private static final String APPDATA_ROOT = "AppData/" + Application.getAppName();
 
+    /* replaced as a whole whenever the registry changes */
+    private static volatile Snapshot _snapshot = load();
+    private static Thread _watcherThread = null;
+
+
+
+    /**
+     * the configuration values read at one time.  never modified once created.
+     */
+    private static class Snapshot {
+
+        /* the last modified time of the registry node once this snapshot was read */
+        long _lastModified;
+
+        String _serialPortName;
+        int _tcpServerPortNumber;
+        String _tcpServerMode;
+        int _tcpPollInterval;
+        int _tcpWriterThreads;
+        int _tcpWriteTimeout;
+        int _udpServerPortNumber;
+        boolean _udpReplies;
+        boolean _relayAcks;
+
+        String _incomingTerminationString;
+        byte[] _incomingTerminationBytes;
+        String _outgoingTerminationString;
+        byte[] _outgoingTerminationBytes;
+        boolean _sendUnsolicitedIoAlerts;
+        boolean _sendDateStamp;
+        boolean _sendCounts;
+        int _inputCount;
+        int _outputCount;
+        int _alertMinInterval;
+
+        int _commandCacheSize;
+        int _commandThreads;
+        int _commandQueueSize;
+        int _outboundQueueSize;
+        String _outboundOverflowPolicy;
+        boolean _collapseAlerts;
+        int _flushWindow;
+        int _flushByteLimit;
+        int _configCheckInterval;
+        int _logQueueSize;
+        int _logSampling;
+        int _statsLogInterval;
+        boolean _stateMirror;
+        int _stateMirrorReconcileInterval;
+        int _maxSequences;
+        int _macroCount;
+        int _journalSize;
+        boolean _sendSequence;
+
+        /* the compiled macros indexed by their number, null where there is none */
+        Macro[] _macros = new Macro[0];
+    }
+
 
 
     static void init() {
-        getSerialPortName();
-        getTcpServerPortNumber();
-        getUdpServerPortNumber();
+        // read the registry now.  this also fills in any keys that are missing with their defaults
+        reload();
+    }
+
+
 
-        getIncomingTerminationString();
-        getOutgoingTerminationString();
-        getSendUnsolicitedIoAlerts();
-        getSendDateStamp();
-        getSendCounts();
+    /**
+     * starts the thread that reloads the configuration when the registry changes.  the check
+     * interval is read from ConfigCheckInterval, 0 turns the checks off.
+     */
+    static synchronized void startWatching() {
+        if (null != _watcherThread || 0 >= getConfigCheckInterval()) return;
+
+        _watcherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(Math.max(100, getConfigCheckInterval()));
+
+                        if (JANOS.getRegistryLastModified(APPDATA_ROOT) != _snapshot._lastModified) {
+                            reload();
+                            AppLog.info("configuration reloaded");
+                        }
+                    } catch (InterruptedException ex) {
+                        return;
+                    } catch (Exception ex) {
+                        AppLog.error("error reloading the configuration", ex);
+                    }
+                }
+            }
+        });
+        _watcherThread.setName("Config-Watcher");
+        _watcherThread.setDaemon(true);
+        _watcherThread.start();
     }
 
 
 
-    public static String getSerialPortName() {
-        return RegistryUtils.getRegistryKey(String.format("%s/SerialPort", APPDATA_ROOT), "none");
+    /**
+     * reads the registry into a new snapshot and swaps it in
+     */
+    static void reload() {
+        Snapshot snapshot = load();
+
+        // the macros are compiled with Jrmon, which reads the configuration when it is first used.
+        // so they are added here, once there is a snapshot to read, and not in load.  the clients
+        // see the new macros and the rest of the new configuration together
+        snapshot._macros = loadMacros(snapshot._macroCount);
+        _snapshot = snapshot;
     }
 
 
 
-    public static String getIncomingTerminationString() {
+    /**
+     * compiles the macros Macros/1 through Macros/count.  a macro that is not valid is logged and
+     * left out.
+     */
+    private static Macro[] loadMacros(int macroCount) {
+        Macro[] macros = new Macro[Math.max(0, macroCount) + 1];
+        for (int i = 1; i < macros.length; i++) {
+            String commands = JANOS.getRegistryString(String.format("%s/Macros/%d", APPDATA_ROOT, i), null);
+            if (null == commands || 0 == commands.trim().length()) continue;
+
+            macros[i] = Macro.compile(commands.trim());
+            if (null == macros[i]) {
+                AppLog.warn(String.format("macro %d is not valid: %s", i, commands));
+            }
+        }
+        return macros;
+    }
+
+
+
+    private static Snapshot load() {
+        Snapshot snapshot = new Snapshot();
+
+        snapshot._serialPortName = RegistryUtils.getRegistryKey(
+                String.format("%s/SerialPort", APPDATA_ROOT), "none");
+        snapshot._tcpServerPortNumber = RegistryUtils.getRegistryKey(
+                String.format("%s/TcpServerPortNumber", APPDATA_ROOT), -1);
+        snapshot._tcpServerMode = RegistryUtils.getRegistryKey(
+                String.format("%s/TcpServerMode", APPDATA_ROOT), "threaded");
+        snapshot._tcpPollInterval = RegistryUtils.getRegistryKey(
+                String.format("%s/TcpPollInterval", APPDATA_ROOT), 5);
+        snapshot._tcpWriterThreads = RegistryUtils.getRegistryKey(
+                String.format("%s/TcpWriterThreads", APPDATA_ROOT), 2);
+        snapshot._tcpWriteTimeout = RegistryUtils.getRegistryKey(
+                String.format("%s/TcpWriteTimeout", APPDATA_ROOT), 5000);
+        snapshot._udpServerPortNumber = RegistryUtils.getRegistryKey(
+                String.format("%s/UdpServerPortNumber", APPDATA_ROOT), -1);
+
+        snapshot._udpReplies = RegistryUtils.getRegistryKey(
+                String.format("%s/UdpReplies", APPDATA_ROOT), false);
+        snapshot._relayAcks = RegistryUtils.getRegistryKey(
+                String.format("%s/RelayAcks", APPDATA_ROOT), false);
+
         String incomingTerminationString = RegistryUtils.getRegistryKey(
                 String.format("%s/IncomingTerminationString", APPDATA_ROOT), "\\n");
-        return new String(getTerminationBytes(incomingTerminationString));
+        snapshot._incomingTerminationBytes = getTerminationBytes(incomingTerminationString);
+        snapshot._incomingTerminationString = new String(snapshot._incomingTerminationBytes);
+        String outgoingTerminationString = RegistryUtils.getRegistryKey(
+                String.format("%s/OutgoingTerminationString", APPDATA_ROOT), "\\n");
+        snapshot._outgoingTerminationBytes = getTerminationBytes(outgoingTerminationString);
+        snapshot._outgoingTerminationString = new String(snapshot._outgoingTerminationBytes);
+
+        snapshot._sendUnsolicitedIoAlerts = RegistryUtils.getRegistryKey(
+                String.format("%s/SendUnsolicitedIoAlerts", APPDATA_ROOT), true);
+        snapshot._sendDateStamp = RegistryUtils.getRegistryKey(
+                String.format("%s/SendDateStamp", APPDATA_ROOT), true);
+        snapshot._sendCounts = RegistryUtils.getRegistryKey(
+                String.format("%s/SendCounts", APPDATA_ROOT), false);
+
+        snapshot._inputCount = RegistryUtils.getRegistryKey(
+                String.format("%s/InputCount", APPDATA_ROOT), 8);
+        snapshot._outputCount = RegistryUtils.getRegistryKey(
+                String.format("%s/OutputCount", APPDATA_ROOT), 8);
+        snapshot._alertMinInterval = RegistryUtils.getRegistryKey(
+                String.format("%s/AlertMinInterval", APPDATA_ROOT), 0);
+
+        snapshot._commandCacheSize = RegistryUtils.getRegistryKey(
+                String.format("%s/CommandCacheSize", APPDATA_ROOT), 64);
+        snapshot._commandThreads = RegistryUtils.getRegistryKey(
+                String.format("%s/CommandThreads", APPDATA_ROOT), 0);
+        snapshot._commandQueueSize = RegistryUtils.getRegistryKey(
+                String.format("%s/CommandQueueSize", APPDATA_ROOT), 16);
+        snapshot._outboundQueueSize = RegistryUtils.getRegistryKey(
+                String.format("%s/OutboundQueueSize", APPDATA_ROOT), 64);
+        snapshot._outboundOverflowPolicy = RegistryUtils.getRegistryKey(
+                String.format("%s/OutboundOverflowPolicy", APPDATA_ROOT), "coalesce");
+        snapshot._collapseAlerts = RegistryUtils.getRegistryKey(
+                String.format("%s/CollapseAlerts", APPDATA_ROOT), false);
+        snapshot._flushWindow = RegistryUtils.getRegistryKey(
+                String.format("%s/FlushWindow", APPDATA_ROOT), 0);
+        snapshot._flushByteLimit = RegistryUtils.getRegistryKey(
+                String.format("%s/FlushByteLimit", APPDATA_ROOT), 512);
+        snapshot._configCheckInterval = RegistryUtils.getRegistryKey(
+                String.format("%s/ConfigCheckInterval", APPDATA_ROOT), 2000);
+        snapshot._logQueueSize = RegistryUtils.getRegistryKey(
+                String.format("%s/LogQueueSize", APPDATA_ROOT), 256);
+        snapshot._logSampling = RegistryUtils.getRegistryKey(
+                String.format("%s/LogSampling", APPDATA_ROOT), 1);
+        snapshot._statsLogInterval = RegistryUtils.getRegistryKey(
+                String.format("%s/StatsLogInterval", APPDATA_ROOT), 0);
+        snapshot._stateMirror = RegistryUtils.getRegistryKey(
+                String.format("%s/StateMirror", APPDATA_ROOT), false);
+        snapshot._stateMirrorReconcileInterval = RegistryUtils.getRegistryKey(
+                String.format("%s/StateMirrorReconcileInterval", APPDATA_ROOT), 1000);
+        snapshot._maxSequences = RegistryUtils.getRegistryKey(
+                String.format("%s/MaxSequences", APPDATA_ROOT), 256);
+        snapshot._macroCount = RegistryUtils.getRegistryKey(
+                String.format("%s/MacroCount", APPDATA_ROOT), 16);
+        snapshot._journalSize = RegistryUtils.getRegistryKey(
+                String.format("%s/JournalSize", APPDATA_ROOT), 256);
+        snapshot._sendSequence = RegistryUtils.getRegistryKey(
+                String.format("%s/SendSequence", APPDATA_ROOT), false);
+
+        // reading the keys writes the defaults of any that are missing so the time is taken last
+        snapshot._lastModified = JANOS.getRegistryLastModified(APPDATA_ROOT);
+        return snapshot;
+    }
+
+
+
+    public static String getSerialPortName() {
+        return _snapshot._serialPortName;
+    }
+
+
+
+    public static String getIncomingTerminationString() {
+        return _snapshot._incomingTerminationString;
+    }
+
+
+
+    /**
+     * @return the decoded incoming termination.  the array is shared and must not be modified.
+     */
+    public static byte[] getIncomingTerminationBytes() {
+        return _snapshot._incomingTerminationBytes;
     }
 
 
 
     public static String getOutgoingTerminationString() {
-        String outgoingTerminationString = RegistryUtils.getRegistryKey(
-                String.format("%s/OutgoingTerminationString", APPDATA_ROOT), "\\n");
-        return new String(getTerminationBytes(outgoingTerminationString));
+        return _snapshot._outgoingTerminationString;
+    }
+
+
+
+    /**
+     * @return the decoded outgoing termination.  the array is shared and must not be modified.
+     */
+    public static byte[] getOutgoingTerminationBytes() {
+        return _snapshot._outgoingTerminationBytes;
     }
 
 
 
     public static int getTcpServerPortNumber() {
-        return RegistryUtils.getRegistryKey(
-                String.format("%s/TcpServerPortNumber", APPDATA_ROOT), -1);
+        return _snapshot._tcpServerPortNumber;
+    }
+
+
+
+    /**
+     * @return threaded to serve each tcp connection with its own threads or polled to serve them
+     * all from one thread
+     */
+    public static String getTcpServerMode() {
+        return _snapshot._tcpServerMode;
+    }
+
+
+
+    /**
+     * @return how long in milliseconds the polled tcp server sleeps when it has nothing to do
+     */
+    public static int getTcpPollInterval() {
+        return _snapshot._tcpPollInterval;
+    }
+
+
+
+    /**
+     * @return the number of threads that write the polled tcp server's replies and alerts.  this
+     * is only read at start up.
+     */
+    public static int getTcpWriterThreads() {
+        return _snapshot._tcpWriterThreads;
+    }
+
+
+
+    /**
+     * @return how long in milliseconds a polled tcp connection's write can take before the
+     * connection is dropped, 0 to wait for ever
+     */
+    public static int getTcpWriteTimeout() {
+        return _snapshot._tcpWriteTimeout;
     }
 
 
 
     public static int getUdpServerPortNumber() {
-        return RegistryUtils.getRegistryKey(
-                String.format("%s/UdpServerPortNumber", APPDATA_ROOT), -1);
+        return _snapshot._udpServerPortNumber;
+    }
+
+
+
+    /**
+     * @return true if each udp datagram is answered with a reply datagram
+     */
+    public static boolean getUdpReplies() {
+        return _snapshot._udpReplies;
+    }
+
+
+
+    /**
+     * @return true if every relay command is acknowledged with the output states.  a tagged relay
+     * command is always acknowledged.
+     */
+    public static boolean getRelayAcks() {
+        return _snapshot._relayAcks;
     }
 
 
@@ -100,23 +387,221 @@ public class Config {
 
 
     public static boolean getSendUnsolicitedIoAlerts() {
-        return RegistryUtils.getRegistryKey(
-                String.format("%s/SendUnsolicitedIoAlerts", APPDATA_ROOT), true);
+        return _snapshot._sendUnsolicitedIoAlerts;
     }
 
 
 
     public static boolean getSendDateStamp() {
-        return RegistryUtils.getRegistryKey(
-                String.format("%s/SendDateStamp", APPDATA_ROOT), true);
+        return _snapshot._sendDateStamp;
     }
 
 
 
     public static boolean getSendCounts() {
-        return RegistryUtils.getRegistryKey(
-                String.format("%s/SendCounts", APPDATA_ROOT), false);
+        return _snapshot._sendCounts;
+    }
+
+
+
+    /**
+     * @return the number of inputs reported by the bulk queries
+     */
+    public static int getInputCount() {
+        return _snapshot._inputCount;
     }
 
-}
 
+
+    /**
+     * @return the number of outputs reported by the bulk queries
+     */
+    public static int getOutputCount() {
+        return _snapshot._outputCount;
+    }
+
+
+
+    /**
+     * @return the least time in milliseconds between two alerts for the same channel, 0 sends
+     * every transition.  the last transition held back is sent once the interval is up.
+     */
+    public static int getAlertMinInterval() {
+        return _snapshot._alertMinInterval;
+    }
+
+
+
+    public static int getCommandCacheSize() {
+        return _snapshot._commandCacheSize;
+    }
+
+
+
+    /**
+     * @return the number of threads that run the serial and tcp clients' commands, 0 runs each
+     * command on the thread that read it.  this is only read at start up.
+     */
+    public static int getCommandThreads() {
+        return _snapshot._commandThreads;
+    }
+
+
+
+    /**
+     * @return the number of commands a client can have waiting to run before its reader waits
+     */
+    public static int getCommandQueueSize() {
+        return _snapshot._commandQueueSize;
+    }
+
+
+
+    public static int getOutboundQueueSize() {
+        return _snapshot._outboundQueueSize;
+    }
+
+
+
+    /**
+     * @return what to do when a client's outbound queue is full: dropoldest, coalesce or disconnect
+     */
+    public static String getOutboundOverflowPolicy() {
+        return _snapshot._outboundOverflowPolicy;
+    }
+
+
+
+    /**
+     * @return true if a client's outbound queue keeps only the latest alert for each channel
+     */
+    public static boolean getCollapseAlerts() {
+        return _snapshot._collapseAlerts;
+    }
+
+
+
+    /**
+     * @return how long in milliseconds a client's writer gathers alerts before writing them
+     * together, 0 writes each alert as soon as it is queued.  replies are never held back.
+     */
+    public static int getFlushWindow() {
+        return _snapshot._flushWindow;
+    }
+
+
+
+    /**
+     * @return the number of bytes that ends the flush window early
+     */
+    public static int getFlushByteLimit() {
+        return _snapshot._flushByteLimit;
+    }
+
+
+
+    /**
+     * @return how often in milliseconds the registry is checked for changes, 0 for never
+     */
+    public static int getConfigCheckInterval() {
+        return _snapshot._configCheckInterval;
+    }
+
+
+
+    /**
+     * @return the number of lines that can wait for the log writer, more are dropped
+     */
+    public static int getLogQueueSize() {
+        return _snapshot._logQueueSize;
+    }
+
+
+
+    /**
+     * @return one in this many of the commands and frames sent and received is logged, 0 logs none
+     */
+    public static int getLogSampling() {
+        return _snapshot._logSampling;
+    }
+
+
+
+    /**
+     * @return how often in milliseconds the latency histograms are written to the app log, 0 for
+     * never
+     */
+    public static int getStatsLogInterval() {
+        return _snapshot._statsLogInterval;
+    }
+
+
+
+    /**
+     * @return true if the io states and counters are answered from a mirror kept up to date by the
+     * IoLog monitors.  this is only read at start up.
+     */
+    public static boolean getStateMirror() {
+        return _snapshot._stateMirror;
+    }
+
+
+
+    /**
+     * @return how often in milliseconds the io state mirror is compared to JANOS, 0 for never
+     */
+    public static int getStateMirrorReconcileInterval() {
+        return _snapshot._stateMirrorReconcileInterval;
+    }
+
+
+
+    /**
+     * @return the number of relay sequences that can run at once
+     */
+    public static int getMaxSequences() {
+        return _snapshot._maxSequences;
+    }
+
+
+
+    /**
+     * @return the compiled macro with the number, or null if there is none
+     */
+    public static Macro getMacro(int number) {
+        Macro[] macros = _snapshot._macros;
+        return (0 < number && number < macros.length) ? macros[number] : null;
+    }
+
+
+
+    /**
+     * @return the number of transitions the event journal keeps.  this is read once, when the
+     * first transition is recorded, so a reload does not resize the journal.  a new size takes
+     * effect when the application is restarted.
+     */
+    public static int getJournalSize() {
+        return _snapshot._journalSize;
+    }
+
+
+
+    /**
+     * @return true if every alert carries its journal sequence number
+     */
+    public static boolean getSendSequence() {
+        return _snapshot._sendSequence;
+    }
+
+
+
+    /**
+     * @return the steps of the relay sequence with the name in the Sequences folder, or null if
+     * there is no such sequence.  this reads the registry each time since a sequence is started
+     * far less often than the registry is checked for changes.
+     */
+    public static String getSequenceSteps(String name) {
+        return JANOS.getRegistryString(String.format("%s/Sequences/%s", APPDATA_ROOT, name), null);
+    }
+
+}
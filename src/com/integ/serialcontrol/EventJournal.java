@@ -0,0 +1,117 @@
+package com.integ.serialcontrol;
+
+/**
+ * The most recent I/O transitions, each numbered with a sequence number that only goes up. An
+ * alert carries the number of its transition when SendSequence is set, so a client that was
+ * disconnected can send "since" with the last number it saw and get every transition it missed in
+ * one reply. The journal is a fixed ring of JournalSize transitions. A client that has been gone
+ * for longer than the ring holds is told there is a gap and has to query the states instead. The
+ * ring is sized from JournalSize when the first transition is recorded and is not resized by a
+ * reload.
+ */
+public class EventJournal {
+
+    private static final Object LOCK = new Object();
+
+    /* the ring, guarded by LOCK.  the transition at the head has the lowest sequence number */
+    private static String[] _typeStrings;
+    private static boolean[] _isInputs;
+    private static int[] _channels;
+    private static boolean[] _states;
+    private static long[] _timestamps;
+    private static int[] _counters;
+    private static int _head = 0;
+    private static int _count = 0;
+    /* the sequence number of the next transition.  the numbers start at 1 */
+    private static long _nextSeq = 1;
+
+
+
+    /**
+     * adds a transition to the journal, replacing the oldest one if the journal is full
+     *
+     * @return the sequence number of the transition
+     */
+    public static long record(String typeString, boolean isInput, int channel, boolean state,
+            long timestamp, int counter) {
+        synchronized (LOCK) {
+            if (null == _typeStrings) allocate(Math.max(1, Config.getJournalSize()));
+
+            int capacity = _typeStrings.length;
+            int index = (_head + _count) % capacity;
+            if (_count == capacity) {
+                _head = (_head + 1) % capacity;
+            } else {
+                _count++;
+            }
+
+            _typeStrings[index] = typeString;
+            _isInputs[index] = isInput;
+            _channels[index] = channel;
+            _states[index] = state;
+            _timestamps[index] = timestamp;
+            _counters[index] = counter;
+            return _nextSeq++;
+        }
+    }
+
+
+
+    /**
+     * appends the reply to "since" with the last sequence number the client saw.  the first line
+     * is "since 120 events=2 last=122" and each transition after it is on its own line in the same
+     * form as its alert, like "din3=1,12,seq=121".  if transitions after the given one have
+     * already left the journal, or the number is ahead of the journal because the application was
+     * restarted, the reply is "since 120 gap oldest=200 last=455" instead.
+     *
+     * @param subscription the transitions to include, or null for all of them
+     */
+    public static void appendSince(AsciiBuffer out, long seq, Subscription subscription) {
+        synchronized (LOCK) {
+            long lastSeq = _nextSeq - 1;
+            long oldestSeq = _nextSeq - _count;
+            out.append("since ").append(seq);
+            if (seq > lastSeq || seq + 1 < oldestSeq) {
+                out.append(" gap oldest=").append(oldestSeq).append(" last=").append(lastSeq);
+                return;
+            }
+
+            // count the lines first since they follow the count
+            int first = (int) (seq + 1 - oldestSeq);
+            int eventCount = 0;
+            for (int i = first; i < _count; i++) {
+                int index = (_head + i) % _typeStrings.length;
+                if (null == subscription || subscription.matches(_isInputs[index], _channels[index])) {
+                    eventCount++;
+                }
+            }
+            out.append(" events=").append(eventCount).append(" last=").append(lastSeq);
+
+            boolean includeCounts = (null != subscription) ? subscription.includesCounts() : Config.getSendCounts();
+            for (int i = first; i < _count; i++) {
+                int index = (_head + i) % _typeStrings.length;
+                if (null != subscription && !subscription.matches(_isInputs[index], _channels[index])) {
+                    continue;
+                }
+
+                FrameEncoder.appendLineBreak(out, _timestamps[index]);
+                out.append(_typeStrings[index]).append(_channels[index]).append('=')
+                        .append(_states[index] ? 1 : 0);
+                if (_isInputs[index] && includeCounts) out.append(',').append(_counters[index]);
+                out.append(",seq=").append(oldestSeq + i);
+            }
+        }
+    }
+
+
+
+    private static void allocate(int capacity) {
+        _typeStrings = new String[capacity];
+        _isInputs = new boolean[capacity];
+        _channels = new int[capacity];
+        _states = new boolean[capacity];
+        _timestamps = new long[capacity];
+        _counters = new int[capacity];
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.integ.serialcontrol;
+
+/**
+ * An encoded frame ready to be written to a client. Broadcast frames are shared by every client
+ * so a frame is never changed once it is created.
+ */
+public class Frame {
+
+    private final byte[] _bytes;
+    /* where the text is within the frame, for logging */
+    private final int _textOffset;
+    private final int _textLength;
+    /* the same alert in the binary protocol, null if there is no binary form */
+    private final byte[] _binaryBytes;
+    /* the time of the I/O transition for an alert or when the command was read for a reply that
+       is timed when it is written, 0 for other frames */
+    private final long _timestamp;
+
+
+
+    public Frame(byte[] bytes, int textOffset, int textLength) {
+        this(bytes, textOffset, textLength, null);
+    }
+
+
+
+    public Frame(byte[] bytes, int textOffset, int textLength, byte[] binaryBytes) {
+        this(bytes, textOffset, textLength, binaryBytes, 0);
+    }
+
+
+
+    public Frame(byte[] bytes, int textOffset, int textLength, byte[] binaryBytes, long timestamp) {
+        _bytes = bytes;
+        _textOffset = textOffset;
+        _textLength = textLength;
+        _binaryBytes = binaryBytes;
+        _timestamp = timestamp;
+    }
+
+
+
+    public byte[] getBytes() {
+        return _bytes;
+    }
+
+
+
+    public byte[] getBinaryBytes() {
+        return _binaryBytes;
+    }
+
+
+
+    public long getTimestamp() {
+        return _timestamp;
+    }
+
+
+
+    public int getTextOffset() {
+        return _textOffset;
+    }
+
+
+
+    public int getTextLength() {
+        return _textLength;
+    }
+
+
+
+    public String getText() {
+        return new String(_bytes, _textOffset, _textLength);
+    }
+
+}
@@ -0,0 +1,110 @@
+package com.integ.serialcontrol;
+
+/**
+ * Encodes the text sent to a client into a frame: the optional date stamp, the text and the
+ * outgoing termination. A broadcast frame is encoded once and the same bytes are queued for every
+ * client, so they must not be changed once encoded.
+ */
+public class FrameEncoder {
+
+    private static final TimestampEncoder TIMESTAMP_ENCODER = new TimestampEncoder();
+
+    /* broadcast frames are built here and then copied into their own array.  guarded by itself */
+    private static final AsciiBuffer BROADCAST_BUFFER = new AsciiBuffer(64);
+
+
+
+    /**
+     * @return a new frame for an I/O alert with both its ASCII text, like "din3=1,12", and its
+     * binary form.  the binary form of an input alert always carries the counter.  when
+     * transitions were held back by the rate limit their number follows, like
+     * "din3=1,12,suppressed=4".  the journal sequence number is last when SendSequence is set, like
+     * "din3=1,12,seq=121".
+     */
+    public static Frame encodeAlert(String typeString, boolean isInput, int channel, boolean state,
+            long timestamp, int counter, boolean includeCount, int suppressedCount, long seq) {
+        boolean includeSeq = Config.getSendSequence();
+        synchronized (BROADCAST_BUFFER) {
+            BROADCAST_BUFFER.reset();
+            BinaryProtocol.appendAlert(BROADCAST_BUFFER, isInput, channel, state, timestamp, counter,
+                    suppressedCount, includeSeq ? seq : 0);
+            byte[] binaryBytes = new byte[BROADCAST_BUFFER.getLength()];
+            System.arraycopy(BROADCAST_BUFFER.getBytes(), 0, binaryBytes, 0, binaryBytes.length);
+
+            BROADCAST_BUFFER.reset();
+            appendPrefix(BROADCAST_BUFFER, timestamp);
+            int textOffset = BROADCAST_BUFFER.getLength();
+            BROADCAST_BUFFER.append(typeString).append(channel).append('=').append(state ? 1 : 0);
+            if (includeCount) BROADCAST_BUFFER.append(',').append(counter);
+            if (0 < suppressedCount) BROADCAST_BUFFER.append(",suppressed=").append(suppressedCount);
+            if (includeSeq) BROADCAST_BUFFER.append(",seq=").append(seq);
+            int textLength = BROADCAST_BUFFER.getLength() - textOffset;
+            appendTermination(BROADCAST_BUFFER);
+
+            byte[] bytes = new byte[BROADCAST_BUFFER.getLength()];
+            System.arraycopy(BROADCAST_BUFFER.getBytes(), 0, bytes, 0, bytes.length);
+            return new Frame(bytes, textOffset, textLength, binaryBytes, timestamp);
+        }
+    }
+
+
+
+    /**
+     * encodes the frame for the text into the given buffer
+     *
+     * @return the offset of the text in the buffer
+     */
+    public static int encode(AsciiBuffer buffer, String s, long timestamp) {
+        buffer.reset();
+        appendPrefix(buffer, timestamp);
+        int textOffset = buffer.getLength();
+        buffer.append(s);
+        appendTermination(buffer);
+        return textOffset;
+    }
+
+
+
+    /**
+     * encodes the frame for the text into the given buffer
+     *
+     * @return the offset of the text in the buffer
+     */
+    public static int encode(AsciiBuffer buffer, byte[] bytes, int offset, int length, long timestamp) {
+        buffer.reset();
+        appendPrefix(buffer, timestamp);
+        int textOffset = buffer.getLength();
+        buffer.append(bytes, offset, length);
+        appendTermination(buffer);
+        return textOffset;
+    }
+
+
+
+    /**
+     * ends the line in the buffer and starts another with the date stamp, for a reply that is more
+     * than one line
+     */
+    static void appendLineBreak(AsciiBuffer buffer, long timestamp) {
+        appendTermination(buffer);
+        appendPrefix(buffer, timestamp);
+    }
+
+
+
+    private static void appendPrefix(AsciiBuffer buffer, long timestamp) {
+        // if client should respond with datestamp
+        if (Config.getSendDateStamp()) {
+            TIMESTAMP_ENCODER.encode(timestamp, buffer);
+            buffer.append(' ');
+        }
+    }
+
+
+
+    private static void appendTermination(AsciiBuffer buffer) {
+        byte[] terminationBytes = Config.getOutgoingTerminationBytes();
+        buffer.append(terminationBytes, 0, terminationBytes.length);
+    }
+
+}
@@ -0,0 +1,30 @@
+package com.integ.serialcontrol;
+
+import java.io.IOException;
+
+/**
+ * The I/O operations the command and alert paths need from the JNIOR. On the unit this is backed
+ * by JANOS. Off the unit the bench uses its SimulatedIoBackend so the command paths can be
+ * exercised without hardware.
+ */
+public interface IoBackend {
+
+    public int getInputStates();
+
+
+
+    public int getOutputStates();
+
+
+
+    public void setOutputStates(int bits, int mask) throws IOException;
+
+
+
+    public boolean setOutputPulsed(int bits, int mask, int milliseconds) throws IOException;
+
+
+
+    public int getInputCounter(int chan);
+
+}
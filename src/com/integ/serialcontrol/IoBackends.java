@@ -0,0 +1,23 @@
+package com.integ.serialcontrol;
+
+/**
+ * Holds the IoBackend used by the application. JANOS is used unless another backend is set
+ * before the clients are started.
+ */
+public class IoBackends {
+
+    private static volatile IoBackend _ioBackend = new JanosIoBackend();
+
+
+
+    public static IoBackend get() {
+        return _ioBackend;
+    }
+
+
+
+    public static void set(IoBackend ioBackend) {
+        _ioBackend = ioBackend;
+    }
+
+}
@@ -0,0 +1,244 @@
+package com.integ.serialcontrol;
+
+import com.integ.common.logging.AppLog;
+import java.io.IOException;
+
+/**
+ * An IoBackend that answers the state and counter queries from memory instead of calling JANOS.
+ * The IoLog monitors hand it every transition and the relay commands it passes on update it as
+ * well. The states and counters are held in one State that is replaced as a whole, so the values
+ * a query reads from a State were all current at the same time.
+ *
+ * A thread compares the mirror to the backend every StateMirrorReconcileInterval. A transition
+ * can still be on its way from the IoLog when the backend is read, so a difference is only taken
+ * as drift when the next comparison finds the same one. Drift is counted, logged and corrected.
+ */
+public class IoStateMirror
+        implements IoBackend, Runnable {
+
+    /**
+     * the states and counters at one time.  never modified once published.
+     */
+    public static class State {
+
+        public final int InputStates;
+        public final int OutputStates;
+        private final int[] _inputCounters;
+
+
+
+        State(int inputStates, int outputStates, int[] inputCounters) {
+            InputStates = inputStates;
+            OutputStates = outputStates;
+            _inputCounters = inputCounters;
+        }
+
+
+
+        public int getInputCounter(int chan) {
+            if (chan < 0 || _inputCounters.length <= chan) return 0;
+            return _inputCounters[chan];
+        }
+
+
+
+        boolean matches(State state) {
+            if (InputStates != state.InputStates || OutputStates != state.OutputStates) return false;
+            for (int i = 0; i < _inputCounters.length; i++) {
+                if (_inputCounters[i] != state._inputCounters[i]) return false;
+            }
+            return true;
+        }
+    }
+
+    private final IoBackend _source;
+    private final int _inputCount;
+
+    private volatile State _state;
+
+    /* the backend's values from the last comparison if they did not match the mirror.  only
+       used by the reconcile thread */
+    private State _mismatch = null;
+    private volatile long _reconcileCount = 0;
+    private volatile long _driftCount = 0;
+
+    private Thread _thread = null;
+
+
+
+    public IoStateMirror(IoBackend source, int inputCount) {
+        _source = source;
+        _inputCount = Math.max(0, inputCount);
+        _state = read();
+    }
+
+
+
+    /**
+     * starts the thread that compares the mirror to the backend
+     */
+    public synchronized void start() {
+        if (null != _thread) return;
+
+        _thread = new Thread(this);
+        _thread.setName("SerialControl-IoStateMirror");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+
+
+    /**
+     * @return the states and counters as of the last transition
+     */
+    public State getState() {
+        return _state;
+    }
+
+
+
+    @Override
+    public int getInputStates() {
+        return _state.InputStates;
+    }
+
+
+
+    @Override
+    public int getOutputStates() {
+        return _state.OutputStates;
+    }
+
+
+
+    @Override
+    public int getInputCounter(int chan) {
+        return _state.getInputCounter(chan);
+    }
+
+
+
+    @Override
+    public void setOutputStates(int bits, int mask) throws IOException {
+        _source.setOutputStates(bits, mask);
+
+        // the relay monitor will report the same change but a query right after the command
+        // should not have to wait for it
+        synchronized (this) {
+            State state = _state;
+            int outputStates = (state.OutputStates & ~mask) | (bits & mask);
+            if (outputStates != state.OutputStates) {
+                _state = new State(state.InputStates, outputStates, state._inputCounters);
+            }
+        }
+    }
+
+
+
+    @Override
+    public boolean setOutputPulsed(int bits, int mask, int milliseconds) throws IOException {
+        // the relay monitor reports both edges of the pulse
+        return _source.setOutputPulsed(bits, mask, milliseconds);
+    }
+
+
+
+    /**
+     * applies a transition reported by an IoLog monitor
+     *
+     * @param counter the input's counter at the transition, ignored for an output
+     */
+    public synchronized void transition(boolean isInput, int channel, boolean on, int counter) {
+        State state = _state;
+        int bit = 1 << (channel - 1);
+        if (isInput) {
+            int inputStates = on ? (state.InputStates | bit) : (state.InputStates & ~bit);
+            int[] inputCounters = state._inputCounters;
+            if (channel <= inputCounters.length && inputCounters[channel - 1] != counter) {
+                inputCounters = inputCounters.clone();
+                inputCounters[channel - 1] = counter;
+            }
+            _state = new State(inputStates, state.OutputStates, inputCounters);
+        } else {
+            int outputStates = on ? (state.OutputStates | bit) : (state.OutputStates & ~bit);
+            _state = new State(state.InputStates, outputStates, state._inputCounters);
+        }
+    }
+
+
+
+    /**
+     * @return the number of comparisons with the backend
+     */
+    public long getReconcileCount() {
+        return _reconcileCount;
+    }
+
+
+
+    /**
+     * @return the number of comparisons that found the mirror had drifted from the backend
+     */
+    public long getDriftCount() {
+        return _driftCount;
+    }
+
+
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                int reconcileInterval = Config.getStateMirrorReconcileInterval();
+                // check again later in case a reload turns the comparison on
+                Thread.sleep((0 < reconcileInterval) ? reconcileInterval : 5000);
+                if (0 >= Config.getStateMirrorReconcileInterval()) continue;
+
+                reconcile();
+            } catch (InterruptedException ex) {
+                return;
+            } catch (Exception ex) {
+                AppLog.error("error reconciling the io state mirror", ex);
+            }
+        }
+    }
+
+
+
+    private void reconcile() {
+        State mismatch = null;
+        synchronized (this) {
+            // holding the lock keeps a transition from landing between the read and the compare
+            State actual = read();
+            _reconcileCount++;
+            if (!actual.matches(_state)) {
+                if (null != _mismatch && actual.matches(_mismatch)) {
+                    _state = actual;
+                    _driftCount++;
+                    mismatch = actual;
+                    _mismatch = null;
+                } else {
+                    _mismatch = actual;
+                }
+            } else {
+                _mismatch = null;
+            }
+        }
+
+        if (null != mismatch) {
+            AppLog.warn(String.format("io state mirror drifted, corrected to inputs=%04X outputs=%04X",
+                    mismatch.InputStates, mismatch.OutputStates));
+        }
+    }
+
+
+
+    private State read() {
+        int[] inputCounters = new int[_inputCount];
+        for (int i = 0; i < _inputCount; i++) {
+            inputCounters[i] = _source.getInputCounter(i);
+        }
+        return new State(_source.getInputStates(), _source.getOutputStates(), inputCounters);
+    }
+
+}
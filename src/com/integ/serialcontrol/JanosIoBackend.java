@@ -0,0 +1,45 @@
+package com.integ.serialcontrol;
+
+import com.integpg.system.JANOS;
+import java.io.IOException;
+
+/**
+ * The IoBackend used on the JNIOR. Every call goes straight to JANOS.
+ */
+public class JanosIoBackend
+        implements IoBackend {
+
+    @Override
+    public int getInputStates() {
+        return JANOS.getInputStates();
+    }
+
+
+
+    @Override
+    public int getOutputStates() {
+        return JANOS.getOutputStates();
+    }
+
+
+
+    @Override
+    public void setOutputStates(int bits, int mask) throws IOException {
+        JANOS.setOutputStates(bits, mask);
+    }
+
+
+
+    @Override
+    public boolean setOutputPulsed(int bits, int mask, int milliseconds) throws IOException {
+        return JANOS.setOutputPulsed(bits, mask, milliseconds);
+    }
+
+
+
+    @Override
+    public int getInputCounter(int chan) {
+        return JANOS.getInputCounter(chan);
+    }
+
+}
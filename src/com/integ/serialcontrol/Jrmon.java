@@ -1,73 +1,226 @@
 package com.integ.serialcontrol;
 
-import com.integpg.system.JANOS;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 
+/**
+ * Parses and applies the jrmon style relay commands, for example "c1", "o2", "t+3", "pc4=500" or a
+ * comma separated list of them. A Jrmon instance keeps its own reusable action and buffer so that
+ * commands are handled without allocating. An instance is not thread safe, each client owns one.
+ * <p>
+ * Each valid command is compiled once and kept in a shared CommandCache. Repeated commands are
+ * applied straight from the cache without being parsed again.
+ * <p>
+ * A comma separated list is applied as one batch. The commands that are not pulsed are folded, in
+ * order, into a single output write and the pulsed commands are folded into one pulse per
+ * duration. The steady write is always made first and the pulses follow it, so a pulse is applied
+ * after every steady command in the list even when it is listed before them. "pc1,c2" closes
+ * relay 2 and then pulses relay 1. If any command in the list is not valid then nothing is
+ * applied.
+ */
 public class Jrmon {
 
-    public static byte[] parseCommand(String lowerCommand) throws IOException {
-        if (0 <= lowerCommand.indexOf(",")) {
-            int begin = 0;
-            while (begin >= 0) {
-                int end = lowerCommand.indexOf(",", begin + 1);
-                parseCommand(lowerCommand, begin, end);
-                if (end >= 0) {
-                    end++;
-                }
-                begin = end;
+    /* compiled commands shared by all of the clients */
+    private static final CommandCache COMMAND_CACHE = new CommandCache(Config.getCommandCacheSize());
+
+    private final RelayAction _relayAction = new RelayAction();
+    private byte[] _commandBytes = new byte[32];
+
+    /* the folded actions of a comma separated list */
+    private final RelayAction _batchAction = new RelayAction();
+    private RelayAction[] _pulseActions = new RelayAction[]{ new RelayAction(), new RelayAction() };
+    private int _pulseActionCount = 0;
+
+
+
+    /**
+     * executes the command text.  the characters are copied into a reusable buffer and executed
+     * from there.
+     *
+     * @return true if every command in the list was valid
+     */
+    public boolean execute(String command) throws IOException {
+        int length = command.length();
+        if (_commandBytes.length < length) {
+            _commandBytes = new byte[length];
+        }
+        for (int i = 0; i < length; i++) {
+            _commandBytes[i] = (byte) command.charAt(i);
+        }
+        return execute(_commandBytes, 0, length);
+    }
+
+
+
+    /**
+     * executes the command or comma separated list of commands as one batch.
+     *
+     * @return true if every command in the list was valid.  nothing is applied otherwise.
+     */
+    public boolean execute(byte[] bytes, int offset, int length) throws IOException {
+        if (!fold(bytes, offset, length)) {
+            return false;
+        }
+
+        apply(IoBackends.get(), _batchAction, _pulseActions, _pulseActionCount);
+        return true;
+    }
+
+
+
+    /**
+     * compiles the command or comma separated list of commands into a macro that applies them as
+     * one batch
+     *
+     * @return the macro or null if any command in the list is not valid
+     */
+    public Macro compileMacro(byte[] bytes, int offset, int length) {
+        if (!fold(bytes, offset, length)) {
+            return null;
+        }
+
+        RelayAction[] pulseActions = new RelayAction[_pulseActionCount];
+        for (int i = 0; i < _pulseActionCount; i++) {
+            pulseActions[i] = new RelayAction(_pulseActions[i]);
+        }
+        return new Macro(new RelayAction(_batchAction), pulseActions);
+    }
+
+
+
+    /**
+     * folds the commands in the list into the batch action and the pulse actions
+     *
+     * @return false if any command in the list is not valid
+     */
+    private boolean fold(byte[] bytes, int offset, int length) {
+        _batchAction.reset();
+        _pulseActionCount = 0;
+
+        int end = offset + length;
+        int begin = offset;
+        while (begin <= end) {
+            int segmentEnd = begin;
+            while (segmentEnd < end && ',' != bytes[segmentEnd]) {
+                segmentEnd++;
+            }
+
+            RelayAction relayAction = compile(bytes, begin, segmentEnd - begin);
+            if (null == relayAction) {
+                return false;
+            }
+            if (relayAction._pulse) {
+                addPulse(relayAction);
+            } else {
+                _batchAction.merge(relayAction);
+            }
+
+            begin = segmentEnd + 1;
+        }
+        return true;
+    }
+
+
+
+    /**
+     * folds the pulsed action into the pulse with the same duration
+     */
+    private void addPulse(RelayAction relayAction) {
+        for (int i = 0; i < _pulseActionCount; i++) {
+            if (_pulseActions[i]._duration == relayAction._duration) {
+                _pulseActions[i].merge(relayAction);
+                return;
+            }
+        }
+
+        if (_pulseActionCount == _pulseActions.length) {
+            RelayAction[] pulseActions = new RelayAction[2 * _pulseActions.length];
+            System.arraycopy(_pulseActions, 0, pulseActions, 0, _pulseActions.length);
+            for (int i = _pulseActions.length; i < pulseActions.length; i++) {
+                pulseActions[i] = new RelayAction();
             }
-        } else {
-            return parseCommand(lowerCommand, 0, lowerCommand.length());
+            _pulseActions = pulseActions;
         }
 
-        return null;
+        RelayAction pulseAction = _pulseActions[_pulseActionCount++];
+        pulseAction.reset();
+        pulseAction._pulse = true;
+        pulseAction._duration = relayAction._duration;
+        pulseAction.merge(relayAction);
     }
 
 
 
-    public static byte[] parseCommand(String lowerCommand, int beginIndex, int endIndex) throws IOException {
-        if (endIndex == -1) {
-            endIndex = lowerCommand.length();
+    /**
+     * reads the outputs at most once, writes the steady changes with one call and then each pulse
+     * with one call on top of the new steady states.  the pulses are always applied after the
+     * steady write, whatever their order in the list.
+     */
+    static void apply(IoBackend ioBackend, RelayAction batchAction, RelayAction[] pulseActions,
+            int pulseActionCount) throws IOException {
+        boolean needsCurrentStates = batchAction.needsCurrentStates();
+        for (int i = 0; i < pulseActionCount; i++) {
+            needsCurrentStates |= pulseActions[i].needsCurrentStates();
+        }
+
+        int currentStates = needsCurrentStates ? ioBackend.getOutputStates() : 0;
+        batchAction.write(ioBackend, currentStates);
+
+        int steadyStates = batchAction.getStates(currentStates);
+        for (int i = 0; i < pulseActionCount; i++) {
+            pulseActions[i].write(ioBackend, steadyStates);
         }
-        lowerCommand = lowerCommand.substring(beginIndex, endIndex);
+    }
+
 
-        // used for caching the action
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
 
-        int i, n;
-        int states = 0;
-        int mask = 0;
-        int parameter = 1000;
+    /**
+     * @return the compiled action for a single command from the cache, parsing and caching it if
+     * needed, or null if the command is not valid
+     */
+    private RelayAction compile(byte[] bytes, int offset, int length) {
+        RelayAction relayAction = COMMAND_CACHE.get(bytes, offset, length);
+        if (null == relayAction) {
+            if (!parse(bytes, offset, length, _relayAction)) {
+                return null;
+            }
+            COMMAND_CACHE.put(bytes, offset, length, _relayAction);
+            relayAction = _relayAction;
+        }
+        return relayAction;
+    }
+
+
+
+    public static CommandCache getCommandCache() {
+        return COMMAND_CACHE;
+    }
+
+
+
+    /**
+     * parses a single command, without any commas, into the given action in one pass.
+     *
+     * @return false if the command is not valid.  the action should not be applied in that case.
+     */
+    public static boolean parse(byte[] bytes, int offset, int length, RelayAction relayAction) {
+        relayAction.reset();
+
         boolean close = false;
         boolean open = false;
         boolean toggle = false;
-        boolean reset = false;
         boolean setcounters = false;
         boolean dosetcounters = false;
-        boolean pulse = false;
         boolean value = false;
-        boolean stop = false;
         int shift = 0;
 
-        int len = lowerCommand.length();
-        char[] chars = new char[len];
-        lowerCommand.getChars(0, len, chars, 0);
-
-        int currentStates = (int) JANOS.getOutputStates();
-//        System.out.println("Current States: " + Integer.toBinaryString(currentStates));
-        states = currentStates;
-
-        for (i = 0; i < len && !stop; i++) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
             /* each character in the comand */
-            switch (chars[i]) {
+            switch (bytes[i]) {
                 case 'c':   // [C]lose sets relay state to 1
                     close = true;
                     open = false;
                     toggle = false;
-                    reset = false;
                     setcounters = false;
                     break;  // next character
 
@@ -75,7 +228,6 @@ public class Jrmon {
                     open = true;
                     close = false;
                     toggle = false;
-                    reset = false;
                     setcounters = false;
                     break;  // next character
 
@@ -83,39 +235,28 @@ public class Jrmon {
                     open = false;
                     close = false;
                     toggle = true;
-                    reset = false;
                     setcounters = false;
                     break;  // next character
 
                 case 'p':   // [P]ulse indicates that changes are pulsed
-                    pulse = true;
+                    relayAction._pulse = true;
                     break;  // next character
 
                 case '=':   // acquire parameter
-                    // extract just the content after the '='
-
-                    StringBuffer sb = new StringBuffer();
-                    for (n = i + 1; n < lowerCommand.length(); n++) {
-                        char c = lowerCommand.charAt(n);
-                        if (!Character.isDigit(c)) {
-                            break;
-                        }
-                        sb.append(c);
+                    // read the digits that follow the '=' as the parameter
+                    int parameter = 0;
+                    int digitCount = 0;
+                    while (i + 1 < end && '0' <= bytes[i + 1] && bytes[i + 1] <= '9') {
                         i++;
+                        int digit = bytes[i] - '0';
+                        if (parameter > (Integer.MAX_VALUE - digit) / 10) return false;
+                        parameter = parameter * 10 + digit;
+                        digitCount++;
                     }
+                    if (0 == digitCount) return false;
 
-                    String cmd = sb.toString(); //command.toString().substring(i+1).trim();
-                    // check that only digits are here
-
-                    for (n = 0; n < cmd.length(); n++) {
-                        if (!Character.isDigit(cmd.charAt(n))) {
-                            return null;
-                            // obtain the integer value
-                        }
-                    }
-                    parameter = new Integer(cmd).intValue();
+                    relayAction._duration = parameter;
                     value = true;
-//                    stop = true;   // ends command interpretation
                     break;
 
                 case 's':   // sets selected counters
@@ -124,11 +265,9 @@ public class Jrmon {
                     open = false;
                     close = false;
                     toggle = false;
-                    reset = false;
                     break;
 
                 case '1':   // digit sets up state and mask
-
                 case '2':
                 case '3':
                 case '4':
@@ -136,30 +275,18 @@ public class Jrmon {
                 case '6':
                 case '7':
                 case '8':
-                    if (!open && !close && !toggle && !reset && !setcounters) {
-                        return null;
+                    if (!open && !close && !toggle && !setcounters) {
+                        return false;
                     }
-                    n = (int) (lowerCommand.charAt(i) - '1');
-                    if (shift == 0) {
-                        mask |= (1 << n);
-                        if (close) {
-                            states |= (1 << n);
-                        } else if (open) {
-                            states &= ~(1 << n);
-                        } else if (toggle) {
-                            states ^= (1 << n);
-                        }
-
+                    int bit = 1 << ((bytes[i] - '1') + 8 * shift);
+                    if (close) {
+                        relayAction.close(bit);
+                    } else if (open) {
+                        relayAction.open(bit);
+                    } else if (toggle) {
+                        relayAction.toggle(bit);
                     } else {
-                        mask |= (1 << (n + 8 * shift));
-                        if (close) {
-                            states |= (1 << n << (8 * shift));
-                        } else if (open) {
-                            states &= ~(1 << n << (8 * shift));
-                        } else if (toggle) {
-                            states ^= (1 << n << (8 * shift));
-//                            System.out.println("Toggle States: " + Integer.toBinaryString(states));
-                        }
+                        relayAction.select(bit);
                     }
                     shift = 0;
                     break;  // next character
@@ -169,21 +296,19 @@ public class Jrmon {
                     break;
 
                 case '*':    // means all
-
-                    if (!open && !close && !reset && !setcounters) {
-                        return null;
+                    if (!open && !close && !setcounters) {
+                        return false;
                     }
-                    mask |= 0xffffffffL;
                     if (close) {
-                        states = 0xffffffff;
+                        relayAction.close(0xffffffff);
                     } else if (open) {
-                        states = 0;
+                        relayAction.open(0xffffffff);
+                    } else {
+                        relayAction.select(0xffffffff);
                     }
-
                     break;  // next character
 
                 case ' ':   // white space ignored
-
                     break;  // next character
 
                 default:    // error in command
@@ -192,44 +317,19 @@ public class Jrmon {
         /* each character in the command */
 
         // extra parameter is an error
-        if (value && !pulse && !dosetcounters) {
-            return null;
-            // parameter conflict - can't use both [S]et and [P]ulse in the same command line.
+        if (value && !relayAction._pulse && !dosetcounters) {
+            return false;
         }
-        if (value && pulse && dosetcounters) {
-            return null;
-            // [S]et Counters command requires a parameter
+        // parameter conflict - can't use both [S]et and [P]ulse in the same command line.
+        if (value && relayAction._pulse && dosetcounters) {
+            return false;
         }
+        // [S]et Counters command requires a parameter
         if (dosetcounters && !value) {
-            return null;
-            // if mask is nonzero then we have changes to make on the way out
-        }
-        if (mask != 0) {
-            if (pulse) {
-                /* this action is pulsed */
-                if (dos != null) {
-                    dos.writeByte(1);
-                    dos.writeShort((short) mask);
-                    dos.writeShort((short) states);
-                    dos.writeInt(parameter);
-                    JANOS.setOutputPulsed(states, mask, parameter);
-                }
-
-            } /* this action is pulsed */ else if (!toggle) {
-                if (dos != null) {
-                    dos.writeByte(2);
-                    dos.writeShort((short) mask);
-                    dos.writeShort((short) states);
-                }
-                JANOS.setOutputStates(states, mask);
-            } else if (toggle) {
-                baos = new ByteArrayOutputStream();
-                dos = new DataOutputStream(baos);
-                JANOS.setOutputStates(states, mask);
-            }
+            return false;
         }
 
-        return baos.toByteArray();
+        return true;
     }
-}
 
+}
@@ -0,0 +1,107 @@
+package com.integ.serialcontrol;
+
+/**
+ * Counts latencies in a fixed set of buckets. Recording one is a short scan of the bucket bounds
+ * and a few increments, it does not allocate. The percentiles it reports are the upper bound of the
+ * bucket they fall in.
+ */
+public class LatencyHistogram {
+
+    /* the upper bound of each bucket in milliseconds.  the last bucket has no bound */
+    private static final long[] BUCKET_BOUNDS = {
+        0, 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000
+    };
+
+    private final String _name;
+
+    private final long[] _counts = new long[BUCKET_BOUNDS.length + 1];
+    private long _count = 0;
+    private long _sum = 0;
+    private long _max = 0;
+
+
+
+    public LatencyHistogram(String name) {
+        _name = name;
+    }
+
+
+
+    public String getName() {
+        return _name;
+    }
+
+
+
+    public synchronized long getCount() {
+        return _count;
+    }
+
+
+
+    /**
+     * records a latency in milliseconds.  a negative latency, from a clock change, counts as 0.
+     */
+    public synchronized void record(long millis) {
+        if (millis < 0) millis = 0;
+
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS.length && BUCKET_BOUNDS[bucket] < millis) {
+            bucket++;
+        }
+        _counts[bucket]++;
+        _count++;
+        _sum += millis;
+        if (_max < millis) _max = millis;
+    }
+
+
+
+    /**
+     * appends a summary like "command.tcp n=12 avg=3 p50=5 p99=10 max=7" in milliseconds
+     */
+    public synchronized void appendSummary(AsciiBuffer out) {
+        out.append(_name).append(" n=").append(_count);
+        if (0 == _count) return;
+
+        out.append(" avg=").append(_sum / _count);
+        out.append(" p50=").append(getPercentile(50));
+        out.append(" p99=").append(getPercentile(99));
+        out.append(" max=").append(_max);
+    }
+
+
+
+    /**
+     * appends the count in every bucket that is not empty after the bucket's upper bound, like
+     * " <=1:4 <=2:7"
+     */
+    public synchronized void appendBuckets(AsciiBuffer out) {
+        for (int i = 0; i < _counts.length; i++) {
+            if (0 == _counts[i]) continue;
+
+            if (i < BUCKET_BOUNDS.length) out.append(" <=").append(BUCKET_BOUNDS[i]);
+            else out.append(" >").append(BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1]);
+            out.append(':').append(_counts[i]);
+        }
+    }
+
+
+
+    /**
+     * @return the upper bound of the bucket that the percentile falls in, or the largest latency
+     * if that is lower
+     */
+    private long getPercentile(int percentile) {
+        // the rank of the latency at the percentile, rounded up
+        long rank = (_count * percentile + 99) / 100;
+
+        long total = 0;
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            total += _counts[i];
+            if (total >= rank) return Math.min(BUCKET_BOUNDS[i], _max);
+        }
+        return _max;
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.integ.serialcontrol;
+
+import com.integ.common.logging.AppLog;
+
+/**
+ * The latency histograms for each transport. A command is timed from when the bytes holding its
+ * termination were read until its reply was written, or until the relays were set if there is no
+ * reply. A reply that is handed to a writer thread carries the time it was read and is recorded
+ * once the writer has flushed it, so the time spent waiting to be written is included. An alert is
+ * timed from the IoLog transition time until it was written to the client. The stats? command
+ * replies with a summary and the histograms are written to the app log every StatsLogInterval
+ * milliseconds. JANOS only has a millisecond clock so that is the resolution.
+ */
+public class LatencyStats {
+
+    public static final int SERIAL = 0;
+    public static final int TCP = 1;
+    public static final int UDP = 2;
+
+    private static final LatencyHistogram[] COMMAND_HISTOGRAMS = {
+        new LatencyHistogram("command.serial"),
+        new LatencyHistogram("command.tcp"),
+        new LatencyHistogram("command.udp")
+    };
+    /* udp does not send alerts */
+    private static final LatencyHistogram[] ALERT_HISTOGRAMS = {
+        new LatencyHistogram("alert.serial"),
+        new LatencyHistogram("alert.tcp")
+    };
+
+    private static Thread _loggerThread = null;
+
+
+
+    /**
+     * records the time since the command was read
+     *
+     * @param receivedTime when the bytes holding the command were read
+     */
+    public static void recordCommand(int transport, long receivedTime) {
+        COMMAND_HISTOGRAMS[transport].record(System.currentTimeMillis() - receivedTime);
+    }
+
+
+
+    /**
+     * records the time since the I/O transition of an alert
+     *
+     * @param transitionTime the IoLog time of the transition in milliseconds, 0 if it is not known
+     */
+    public static void recordAlert(int transport, long transitionTime) {
+        if (0 >= transitionTime || UDP == transport) return;
+
+        ALERT_HISTOGRAMS[transport].record(System.currentTimeMillis() - transitionTime);
+    }
+
+
+
+    /**
+     * appends the summary of every histogram separated by ';'.  the times are in milliseconds.
+     */
+    public static void appendSummary(AsciiBuffer out) {
+        for (int i = 0; i < COMMAND_HISTOGRAMS.length; i++) {
+            if (0 < i) out.append(';');
+            COMMAND_HISTOGRAMS[i].appendSummary(out);
+        }
+        for (int i = 0; i < ALERT_HISTOGRAMS.length; i++) {
+            out.append(';');
+            ALERT_HISTOGRAMS[i].appendSummary(out);
+        }
+    }
+
+
+
+    /**
+     * starts the thread that writes the histograms to the app log.  the interval is read from
+     * StatsLogInterval each time so that a reload can change it, 0 stops the logging.
+     */
+    static synchronized void startLogging() {
+        if (null != _loggerThread) return;
+
+        _loggerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                AsciiBuffer line = new AsciiBuffer(256);
+                while (true) {
+                    try {
+                        int statsLogInterval = Config.getStatsLogInterval();
+                        // check again later in case a reload turns the logging on
+                        Thread.sleep((0 < statsLogInterval) ? statsLogInterval : 5000);
+                        if (0 >= Config.getStatsLogInterval()) continue;
+
+                        logHistograms(COMMAND_HISTOGRAMS, line);
+                        logHistograms(ALERT_HISTOGRAMS, line);
+                    } catch (InterruptedException ex) {
+                        return;
+                    } catch (Exception ex) {
+                        AppLog.error("error logging the latency stats", ex);
+                    }
+                }
+            }
+        });
+        _loggerThread.setName("SerialControl-LatencyStats");
+        _loggerThread.setDaemon(true);
+        _loggerThread.start();
+    }
+
+
+
+    private static void logHistograms(LatencyHistogram[] histograms, AsciiBuffer line) {
+        for (int i = 0; i < histograms.length; i++) {
+            if (0 == histograms[i].getCount()) continue;
+
+            line.reset();
+            histograms[i].appendSummary(line);
+            histograms[i].appendBuckets(line);
+            AppLog.info(line.toString());
+        }
+    }
+
+}
@@ -0,0 +1,43 @@
+package com.integ.serialcontrol;
+
+import java.io.IOException;
+
+/**
+ * A relay command list from the Macros folder of the registry, compiled when the configuration is
+ * loaded. A client runs it with the short command "m" and its number, so a slow serial link does
+ * not have to carry the whole list and the list is never parsed again. A macro is never modified
+ * once compiled so every client can apply the same one.
+ */
+public class Macro {
+
+    /* the steady changes, written with one call, and one pulse for each duration */
+    private final RelayAction _batchAction;
+    private final RelayAction[] _pulseActions;
+
+
+
+    Macro(RelayAction batchAction, RelayAction[] pulseActions) {
+        _batchAction = batchAction;
+        _pulseActions = pulseActions;
+    }
+
+
+
+    /**
+     * @return the macro for the command list or null if any command in it is not valid
+     */
+    public static Macro compile(String commands) {
+        byte[] bytes = commands.toLowerCase().getBytes();
+        return new Jrmon().compileMacro(bytes, 0, bytes.length);
+    }
+
+
+
+    /**
+     * applies the commands the same way Jrmon applies the list
+     */
+    public void apply(IoBackend ioBackend) throws IOException {
+        Jrmon.apply(ioBackend, _batchAction, _pulseActions, _pulseActions.length);
+    }
+
+}
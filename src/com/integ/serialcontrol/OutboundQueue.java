@@ -0,0 +1,315 @@
+package com.integ.serialcontrol;
+
+/**
+ * A bounded queue of unsolicited alerts waiting to be written to one client. Broadcasts only add
+ * to the queue and the client's writer thread drains it, so a slow or stalled client cannot hold
+ * up the other clients or the IoLog monitors. The queue is a fixed ring and adding an alert does
+ * not allocate.
+ *
+ * A collapsing queue holds at most one alert for each channel. An alert for a channel that
+ * already has one waiting replaces it in its place, so the client gets the latest state of every
+ * channel without waiting behind the transitions it missed. The queue remembers where the newest
+ * alert for each channel is so replacing one does not search.
+ *
+ * Replies that a CommandExecutor thread hands over wait in a separate ring and are taken ahead of
+ * the alerts. They are never dropped or coalesced. A client with a full reply ring is not reading
+ * and has to be disconnected.
+ */
+public class OutboundQueue {
+
+    /* when the queue is full the oldest alert is dropped */
+    public static final int DROP_OLDEST = 0;
+    /* when the queue is full an alert replaces the queued alert for the same channel, or the oldest
+       alert is dropped if that channel has nothing queued */
+    public static final int COALESCE = 1;
+    /* when the queue is full the client is disconnected */
+    public static final int DISCONNECT = 2;
+
+    /* the channel key for alerts that do not belong to a channel.  these are never coalesced */
+    public static final int NO_CHANNEL = -1;
+
+    private final Frame[] _frames;
+    private final int[] _channelKeys;
+    private final int _overflowPolicy;
+    private final boolean _collapsing;
+    /* the index of the newest queued alert for each channel key, -1 if there is none */
+    private int[] _newestIndexes = new int[0];
+
+    private int _head = 0;
+    private int _count = 0;
+    private boolean _closed = false;
+
+    /* the replies waiting to be written */
+    private final Frame[] _replies;
+    private int _replyHead = 0;
+    private int _replyCount = 0;
+
+    private int _maxDepth = 0;
+    private long _droppedCount = 0;
+    /* alerts replaced by a newer alert for the same channel */
+    private long _coalescedCount = 0;
+
+
+
+    /**
+     * an alert taken off of the queue.  the writer reuses one of these for every alert.
+     */
+    public static class Entry {
+
+        public Frame Frame;
+        public int ChannelKey;
+        /* true for a reply, which is written as it is in whatever protocol it was encoded in */
+        public boolean Reply;
+    }
+
+
+
+    public OutboundQueue(int capacity, int overflowPolicy) {
+        this(capacity, overflowPolicy, false);
+    }
+
+
+
+    /**
+     * @param collapsing true to keep only the latest alert for each channel
+     */
+    public OutboundQueue(int capacity, int overflowPolicy, boolean collapsing) {
+        capacity = Math.max(1, capacity);
+        _replies = new Frame[capacity];
+        _frames = new Frame[capacity];
+        _channelKeys = new int[capacity];
+        _overflowPolicy = overflowPolicy;
+        _collapsing = collapsing;
+        // room for the inputs and outputs of 256 channels each, see getChannelKey
+        setNewestIndex(2 * 256 - 1, -1);
+    }
+
+
+
+    /**
+     * @return the key that identifies a channel for coalescing
+     */
+    public static int getChannelKey(boolean isInput, int channel) {
+        return isInput ? channel : 256 + channel;
+    }
+
+
+
+    /**
+     * @return the overflow policy named in the configuration.  coalesce is used if the name is not
+     * recognized.
+     */
+    public static int parseOverflowPolicy(String overflowPolicyString) {
+        if ("dropoldest".equalsIgnoreCase(overflowPolicyString)) return DROP_OLDEST;
+        if ("disconnect".equalsIgnoreCase(overflowPolicyString)) return DISCONNECT;
+        return COALESCE;
+    }
+
+
+
+    /**
+     * queues the alert.  the frame is not copied.
+     *
+     * @return false if the queue is full and the policy is to disconnect the client
+     */
+    public synchronized boolean offer(Frame frame, int channelKey) {
+        if (_closed) return true;
+
+        int newestIndex = getNewestIndex(channelKey);
+        if (-1 != newestIndex && (_collapsing
+                || (_count == _frames.length && COALESCE == _overflowPolicy))) {
+            // replace the newest alert queued for the same channel
+            _frames[newestIndex] = frame;
+            _coalescedCount++;
+            return true;
+        }
+
+        if (_count == _frames.length) {
+            if (DISCONNECT == _overflowPolicy) {
+                _droppedCount++;
+                return false;
+            }
+
+            // drop the oldest alert
+            forgetHead();
+            _frames[_head] = null;
+            _head = (_head + 1) % _frames.length;
+            _count--;
+            _droppedCount++;
+        }
+
+        int index = (_head + _count) % _frames.length;
+        _frames[index] = frame;
+        _channelKeys[index] = channelKey;
+        setNewestIndex(channelKey, index);
+        _count++;
+        if (_maxDepth < _count) _maxDepth = _count;
+
+        notifyAll();
+        return true;
+    }
+
+
+
+    /**
+     * queues a reply ahead of the alerts.  the frame is not copied.
+     *
+     * @return false if the replies already waiting fill the queue
+     */
+    public synchronized boolean offerReply(Frame frame) {
+        if (_closed) return true;
+        if (_replyCount == _replies.length) return false;
+
+        _replies[(_replyHead + _replyCount) % _replies.length] = frame;
+        _replyCount++;
+        notifyAll();
+        return true;
+    }
+
+
+
+    /**
+     * waits for a reply or an alert and copies it into the given entry
+     *
+     * @return false once the queue has been closed
+     */
+    public synchronized boolean take(Entry entry) throws InterruptedException {
+        while (0 == _count && 0 == _replyCount && !_closed) {
+            wait();
+        }
+        if (_closed) return false;
+
+        remove(entry);
+        return true;
+    }
+
+
+
+    /**
+     * waits up to the timeout for a reply or an alert and copies it into the given entry
+     *
+     * @return false if there was nothing in time or the queue has been closed
+     */
+    public synchronized boolean poll(Entry entry, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (0 == _count && 0 == _replyCount && !_closed) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            wait(remaining);
+        }
+        if (_closed) return false;
+
+        remove(entry);
+        return true;
+    }
+
+
+
+    private void remove(Entry entry) {
+        if (0 < _replyCount) {
+            entry.Frame = _replies[_replyHead];
+            entry.ChannelKey = NO_CHANNEL;
+            entry.Reply = true;
+            _replies[_replyHead] = null;
+            _replyHead = (_replyHead + 1) % _replies.length;
+            _replyCount--;
+            return;
+        }
+
+        entry.Frame = _frames[_head];
+        entry.ChannelKey = _channelKeys[_head];
+        entry.Reply = false;
+        forgetHead();
+
+        _frames[_head] = null;
+        _head = (_head + 1) % _frames.length;
+        _count--;
+    }
+
+
+
+    private int getNewestIndex(int channelKey) {
+        if (NO_CHANNEL == channelKey || _newestIndexes.length <= channelKey) return -1;
+        return _newestIndexes[channelKey];
+    }
+
+
+
+    private void setNewestIndex(int channelKey, int index) {
+        if (NO_CHANNEL == channelKey) return;
+
+        if (_newestIndexes.length <= channelKey) {
+            int[] newestIndexes = new int[Math.max(2 * _newestIndexes.length, channelKey + 1)];
+            System.arraycopy(_newestIndexes, 0, newestIndexes, 0, _newestIndexes.length);
+            for (int i = _newestIndexes.length; i < newestIndexes.length; i++) {
+                newestIndexes[i] = -1;
+            }
+            _newestIndexes = newestIndexes;
+        }
+        _newestIndexes[channelKey] = index;
+    }
+
+
+
+    /**
+     * the alert at the head is leaving the queue.  if it was the newest for its channel then that
+     * channel has nothing queued any more.
+     */
+    private void forgetHead() {
+        int channelKey = _channelKeys[_head];
+        if (getNewestIndex(channelKey) == _head) _newestIndexes[channelKey] = -1;
+    }
+
+
+
+    public synchronized void close() {
+        _closed = true;
+        _count = 0;
+        _replyCount = 0;
+        for (int i = 0; i < _frames.length; i++) {
+            _frames[i] = null;
+            _replies[i] = null;
+        }
+        for (int i = 0; i < _newestIndexes.length; i++) {
+            _newestIndexes[i] = -1;
+        }
+        notifyAll();
+    }
+
+
+
+    public synchronized int getDepth() {
+        return _count;
+    }
+
+
+
+    public synchronized int getMaxDepth() {
+        return _maxDepth;
+    }
+
+
+
+    public synchronized long getDroppedCount() {
+        return _droppedCount;
+    }
+
+
+
+    public synchronized long getCoalescedCount() {
+        return _coalescedCount;
+    }
+
+
+
+    /**
+     * appends the depth and counters, like "depth=0 max=12 dropped=0 coalesced=5"
+     */
+    public synchronized void appendSummary(AsciiBuffer out) {
+        out.append("depth=").append(_count);
+        out.append(" max=").append(_maxDepth);
+        out.append(" dropped=").append(_droppedCount);
+        out.append(" coalesced=").append(_coalescedCount);
+    }
+
+}
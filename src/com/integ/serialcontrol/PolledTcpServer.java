@@ -0,0 +1,576 @@
+package com.integ.serialcontrol;
+
+import com.integ.common.logging.AppLog;
+import com.integ.common.logging.Logger;
+import com.integ.common.logging.SystemOutLog;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+
+/**
+ * A tcp front end that serves every connection from one thread instead of a reader and a writer
+ * thread per connection. JANOS does not have java.nio so there is no selector. Instead the poll
+ * thread only reads what InputStream.available reports, so a read never blocks, and it sleeps for
+ * the poll interval whenever a pass over the connections found nothing to do. A second thread
+ * blocks in accept and hands the new sockets to the poll thread. The commands and replies are the
+ * same as with the threaded server.
+ *
+ * The poll thread never writes. Replies and alerts wait in each connection's bounded
+ * OutboundQueue and TcpWriterThreads writer threads take the connections that have output in
+ * turn, so a peer that stops reading holds up at most one writer and never the poll thread. A
+ * connection whose queue overflows, or whose write takes longer than TcpWriteTimeout, is dropped,
+ * which also frees the writer that was stuck on it.
+ */
+public class PolledTcpServer
+        implements Runnable {
+
+    /* a connection that has been quiet this long is probed to see if the peer closed it */
+    private static final int IDLE_PROBE_INTERVAL = 5000;
+    /* how long the accept thread waits before trying again after accept failed */
+    private static final int ACCEPT_RETRY_INTERVAL = 1000;
+
+    // initially we will log to the system.out stream unless setLog is called.  the lines are
+    // written by the log writer thread so logging never holds up the poll thread
+    private AsyncLog _log = AsyncLog.getLogger(SystemOutLog.getLogger());
+
+    private final int _portNumber;
+    private final int _pollInterval;
+
+    /* sockets accepted but not yet picked up by the poll thread.  guarded by itself */
+    private final ArrayList<Socket> _acceptedSockets = new ArrayList<>();
+    /* the connections being served.  only used by the poll thread */
+    private final ArrayList<Connection> _connections = new ArrayList<>();
+    private int _probeIndex = 0;
+
+    /* the poll thread is the only one that reads, dispatches and encodes replies so these can be
+       shared */
+    private final byte[] _readBuffer = new byte[1024];
+    private final CommandDispatcher _commandDispatcher = new CommandDispatcher();
+    private final BinaryProtocol _binaryProtocol = new BinaryProtocol();
+    private final AsciiBuffer _frameBuffer = new AsciiBuffer(64);
+    /* when the bytes being handled were read */
+    private long _receivedTime = 0;
+
+    /* the connections with output waiting for a writer thread.  guarded by itself */
+    private final ArrayList<Connection> _writeReady = new ArrayList<>();
+
+    private Thread _thread = null;
+
+
+
+    /**
+     * a connection served by the poll thread
+     */
+    private class Connection
+            implements BroadcastClient, CommandFramer.Listener {
+
+        final String _clientNameString;
+        final Socket _socket;
+        final InputStream _inputStream;
+        final OutputStream _outputStream;
+        final OutboundQueue _outboundQueue;
+        final CommandFramer _commandFramer = new CommandFramer(this);
+        final Subscription _subscription = new Subscription();
+
+        long _lastActivity = System.currentTimeMillis();
+
+        int _registryHandle = -1;
+        /* set by a broadcast when the queue overflows and the policy is to disconnect */
+        volatile boolean _overflowed = false;
+        boolean _closed = false;
+
+        /* true while the connection is on the write ready list or a writer has it.  guarded by the
+           connection */
+        boolean _writeScheduled = false;
+        /* the protocol of the alerts taken after the last queued reply.  it changes together with
+           queuing the reply to a switch.  guarded by the connection */
+        boolean _binary = false;
+        /* when the write in progress started, 0 when there is none */
+        volatile long _writeStartTime = 0;
+        /* set by a writer when a write fails.  the poll thread then closes the connection */
+        volatile boolean _writeFailed = false;
+
+
+
+        Connection(Socket socket) throws IOException {
+            _socket = socket;
+            _clientNameString = String.format("%s:%d",
+                    socket.getInetAddress().getHostAddress(), socket.getPort());
+            _inputStream = socket.getInputStream();
+            _outputStream = socket.getOutputStream();
+            _outboundQueue = new OutboundQueue(Config.getOutboundQueueSize(),
+                    OutboundQueue.parseOverflowPolicy(Config.getOutboundOverflowPolicy()),
+                    Config.getCollapseAlerts());
+        }
+
+
+
+        @Override
+        public Subscription getSubscription() {
+            return _subscription;
+        }
+
+
+
+        @Override
+        public void queueAlert(Frame frame, int channelKey) {
+            if (!_outboundQueue.offer(frame, channelKey)) {
+                // the poll thread closes the connection
+                _overflowed = true;
+                return;
+            }
+            scheduleWrite(this);
+        }
+
+
+
+        /**
+         * copies the encoded reply into a frame for the writers
+         *
+         * @param binary the protocol the connection uses after the reply
+         * @param receivedTime when the command was read, the writer records the latency once the
+         * reply is written.  0 if the reply is not timed.
+         */
+        void queueReply(AsciiBuffer reply, boolean binary, long receivedTime) {
+            byte[] bytes = new byte[reply.getLength()];
+            System.arraycopy(reply.getBytes(), 0, bytes, 0, bytes.length);
+            synchronized (this) {
+                if (!_outboundQueue.offerReply(new Frame(bytes, 0, 0, null, receivedTime))) {
+                    _log.warn(String.format("%s has %d replies waiting to write, disconnecting",
+                            _clientNameString, Config.getOutboundQueueSize()));
+                    _closed = true;
+                    return;
+                }
+                _binary = binary;
+            }
+            scheduleWrite(this);
+        }
+
+
+
+        @Override
+        public void appendSummary(AsciiBuffer out) {
+            out.append("client ").append(_clientNameString).append(" queue ");
+            _outboundQueue.appendSummary(out);
+        }
+
+
+
+        @Override
+        public void commandReceived(byte[] bytes, int offset, int length) throws IOException {
+            _log.traffic(_clientNameString, "received", bytes, offset, length);
+
+            // the dispatcher is shared so point it at this connection's subscription
+            _commandDispatcher.setSubscription(_subscription);
+            int result = _commandDispatcher.dispatch(bytes, offset, length);
+            if (CommandDispatcher.NO_REPLY != result) {
+                AsciiBuffer reply = _commandDispatcher.getReply();
+                int textOffset = FrameEncoder.encode(_frameBuffer, reply.getBytes(), 0, reply.getLength(),
+                        System.currentTimeMillis());
+                _log.traffic(_clientNameString, "sent", _frameBuffer.getBytes(), textOffset, reply.getLength());
+                queueReply(_frameBuffer, CommandDispatcher.SWITCH_TO_BINARY == result, _receivedTime);
+            } else {
+                // a command without a reply is done once the relays are set
+                LatencyStats.recordCommand(LatencyStats.TCP, _receivedTime);
+            }
+
+            // the reply to the switch is the last thing sent in ASCII
+            if (CommandDispatcher.SWITCH_TO_BINARY == result) _commandFramer.setBinary(true);
+        }
+
+
+
+        @Override
+        public void binaryFrameReceived(byte[] bytes, int offset, int length) throws IOException {
+            _frameBuffer.reset();
+            int result = _binaryProtocol.process(bytes, offset, length, _frameBuffer);
+            queueReply(_frameBuffer, BinaryProtocol.SWITCH_TO_ASCII != result, _receivedTime);
+
+            // the response to the switch is the last thing sent in binary
+            if (BinaryProtocol.SWITCH_TO_ASCII == result) _commandFramer.setBinary(false);
+        }
+
+
+
+        @Override
+        public void binaryFrameRejected() throws IOException {
+            _log.warn(_clientNameString + " received a binary frame with a bad checksum");
+
+            _frameBuffer.reset();
+            BinaryProtocol.appendError(_frameBuffer, BinaryProtocol.ERROR_CHECKSUM);
+            queueReply(_frameBuffer, true, 0);
+        }
+    }
+
+
+
+    /**
+     * a writer thread.  it takes a connection off of the ready list, writes everything the
+     * connection has waiting with one write and puts it back at the end of the list, so the
+     * connections take turns.  a connection with nothing left is taken off of the list.
+     */
+    private class Writer
+            implements Runnable {
+
+        final AsciiBuffer _writeBuffer = new AsciiBuffer(256);
+        final OutboundQueue.Entry _entry = new OutboundQueue.Entry();
+        /* the frames in a write, whether each is a reply and its time to record the latency from */
+        long[] _timestamps = new long[16];
+        boolean[] _replies = new boolean[16];
+
+
+
+        @Override
+        public void run() {
+            while (true) {
+                Connection connection;
+                try {
+                    synchronized (_writeReady) {
+                        while (0 == _writeReady.size()) {
+                            _writeReady.wait();
+                        }
+                        connection = _writeReady.remove(0);
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                }
+
+                try {
+                    if (write(connection)) scheduleWrite(connection, true);
+                } catch (Exception ex) {
+                    AppLog.error("error writing to a polled tcp connection", ex);
+                }
+            }
+        }
+
+
+
+        /**
+         * @return true if something was written and the connection should have another turn
+         */
+        private boolean write(Connection connection) {
+            _writeBuffer.reset();
+            int frameCount = 0;
+
+            // the connection is held while the output is taken so that the protocol cannot switch
+            // part way through
+            synchronized (connection) {
+                try {
+                    while (connection._outboundQueue.poll(_entry, 0)) {
+                        Frame frame = _entry.Frame;
+                        byte[] bytes;
+                        if (_entry.Reply) {
+                            bytes = frame.getBytes();
+                        } else {
+                            bytes = connection._binary ? frame.getBinaryBytes() : frame.getBytes();
+                            if (null == bytes) continue;
+                            _log.traffic(connection._clientNameString, "sent", frame.getBytes(),
+                                    frame.getTextOffset(), frame.getTextLength());
+                        }
+
+                        _writeBuffer.append(bytes, 0, bytes.length);
+                        if (_timestamps.length == frameCount) {
+                            long[] timestamps = new long[2 * frameCount];
+                            System.arraycopy(_timestamps, 0, timestamps, 0, frameCount);
+                            _timestamps = timestamps;
+                            boolean[] replies = new boolean[2 * frameCount];
+                            System.arraycopy(_replies, 0, replies, 0, frameCount);
+                            _replies = replies;
+                        }
+                        _timestamps[frameCount] = frame.getTimestamp();
+                        _replies[frameCount] = _entry.Reply;
+                        frameCount++;
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                _entry.Frame = null;
+
+                if (0 == _writeBuffer.getLength()) {
+                    connection._writeScheduled = false;
+                    return false;
+                }
+            }
+
+            connection._writeStartTime = System.currentTimeMillis();
+            try {
+                connection._outputStream.write(_writeBuffer.getBytes(), 0, _writeBuffer.getLength());
+                connection._outputStream.flush();
+            } catch (IOException ex) {
+                // the connection stays scheduled so that it is not written again
+                _log.error(connection._clientNameString + " write failed", ex);
+                connection._writeFailed = true;
+                return false;
+            } finally {
+                connection._writeStartTime = 0;
+            }
+
+            for (int i = 0; i < frameCount; i++) {
+                if (!_replies[i]) {
+                    LatencyStats.recordAlert(LatencyStats.TCP, _timestamps[i]);
+                } else if (0 < _timestamps[i]) {
+                    LatencyStats.recordCommand(LatencyStats.TCP, _timestamps[i]);
+                }
+            }
+            return true;
+        }
+    }
+
+
+
+    public PolledTcpServer(int portNumber, int pollInterval) {
+        _portNumber = portNumber;
+        _pollInterval = Math.max(1, pollInterval);
+    }
+
+
+
+    public void setLog(Logger log) {
+        _log = AsyncLog.getLogger(log);
+    }
+
+
+
+    public void start() throws IOException {
+        if (null != _thread) return;
+
+        final ServerSocket serverSocket = new ServerSocket(_portNumber);
+
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        synchronized (_acceptedSockets) {
+                            _acceptedSockets.add(socket);
+                        }
+                    } catch (IOException ex) {
+                        AppLog.error("error accepting tcp connection", ex);
+
+                        // a failure that persists would otherwise spin and fill the log
+                        try {
+                            Thread.sleep(ACCEPT_RETRY_INTERVAL);
+                        } catch (InterruptedException ex1) {
+                            return;
+                        }
+                    }
+                }
+            }
+        });
+        acceptThread.setName("SerialControl-PolledTcpServer-Accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+
+        int writerCount = Math.max(1, Config.getTcpWriterThreads());
+        for (int i = 0; i < writerCount; i++) {
+            Thread writerThread = new Thread(new Writer());
+            writerThread.setName("SerialControl-PolledTcpServer-Writer-" + i);
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+
+        _thread = new Thread(this);
+        _thread.setName("SerialControl-PolledTcpServer");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                addAcceptedConnections();
+
+                boolean busy = false;
+                for (int i = _connections.size() - 1; i >= 0; i--) {
+                    Connection connection = _connections.get(i);
+                    try {
+                        busy |= service(connection);
+                    } catch (IOException ex) {
+                        _log.error(connection._clientNameString + " client closing", ex);
+                        connection._closed = true;
+                    }
+
+                    if (connection._closed) {
+                        _connections.remove(i);
+                        close(connection);
+                    }
+                }
+
+                probeIdleConnection();
+
+                if (!busy) Thread.sleep(_pollInterval);
+            } catch (InterruptedException ex) {
+                return;
+            } catch (Exception ex) {
+                AppLog.error("error in the polled tcp server", ex);
+            }
+        }
+    }
+
+
+
+    private void addAcceptedConnections() {
+        synchronized (_acceptedSockets) {
+            for (int i = 0; i < _acceptedSockets.size(); i++) {
+                Socket socket = _acceptedSockets.get(i);
+                try {
+                    // only the idle probe does a read that could block so keep it short
+                    socket.setSoTimeout(1);
+
+                    Connection connection = new Connection(socket);
+                    _connections.add(connection);
+                    connection._registryHandle = SerialControlClient.getClientRegistry().register(connection);
+                    _log.info(String.format("%s is connected", connection._clientNameString));
+                } catch (IOException ex) {
+                    _log.error("error setting up polled tcp connection", ex);
+                    try {
+                        socket.close();
+                    } catch (IOException ex1) {
+                    }
+                }
+            }
+            _acceptedSockets.clear();
+        }
+    }
+
+
+
+    /**
+     * reads and handles any complete commands.  the replies are left for the writers.
+     *
+     * @return true if there was anything to do
+     */
+    private boolean service(Connection connection) throws IOException {
+        if (connection._overflowed) {
+            _log.warn(String.format("%s outbound queue is full after %d alerts were dropped, disconnecting",
+                    connection._clientNameString, connection._outboundQueue.getDroppedCount()));
+            connection._closed = true;
+            return true;
+        }
+        if (connection._writeFailed) {
+            connection._closed = true;
+            return true;
+        }
+        long writeStartTime = connection._writeStartTime;
+        int writeTimeout = Config.getTcpWriteTimeout();
+        if (0 != writeStartTime && 0 < writeTimeout
+                && writeTimeout < System.currentTimeMillis() - writeStartTime) {
+            // closing the socket ends the write and frees the writer
+            _log.warn(String.format("%s write did not finish within %d ms, disconnecting",
+                    connection._clientNameString, writeTimeout));
+            connection._closed = true;
+            return true;
+        }
+
+        boolean busy = false;
+
+        int available = connection._inputStream.available();
+        if (0 < available) {
+            int bytesRead = connection._inputStream.read(_readBuffer, 0, Math.min(available, _readBuffer.length));
+            if (-1 == bytesRead) {
+                connection._closed = true;
+                return true;
+            }
+            received(connection, bytesRead);
+            busy = true;
+        }
+        return busy;
+    }
+
+
+
+    /**
+     * hands the bytes in the read buffer to the connection's framer
+     */
+    private void received(Connection connection, int bytesRead) throws IOException {
+        connection._lastActivity = System.currentTimeMillis();
+        _receivedTime = System.currentTimeMillis();
+        connection._commandFramer.received(_readBuffer, 0, bytesRead);
+    }
+
+
+
+    /**
+     * puts the connection on the write ready list unless it is already there or being written
+     */
+    private void scheduleWrite(Connection connection) {
+        scheduleWrite(connection, false);
+    }
+
+
+
+    /**
+     * @param again true if a writer has the connection and is giving it another turn
+     */
+    private void scheduleWrite(Connection connection, boolean again) {
+        if (!again) {
+            synchronized (connection) {
+                if (connection._writeScheduled) return;
+                connection._writeScheduled = true;
+            }
+        }
+
+        synchronized (_writeReady) {
+            _writeReady.add(connection);
+            _writeReady.notify();
+        }
+    }
+
+
+
+    /**
+     * a peer that closed its end never makes any bytes available, so a connection that has been
+     * quiet for a while gets a short read to find out.  one connection is probed per pass.
+     */
+    private void probeIdleConnection() {
+        if (0 == _connections.size()) return;
+
+        _probeIndex = (_probeIndex + 1) % _connections.size();
+        Connection connection = _connections.get(_probeIndex);
+        if (System.currentTimeMillis() - connection._lastActivity < IDLE_PROBE_INTERVAL) return;
+
+        connection._lastActivity = System.currentTimeMillis();
+        try {
+            int b = connection._inputStream.read();
+            if (-1 == b) {
+                connection._closed = true;
+            } else {
+                _readBuffer[0] = (byte) b;
+                received(connection, 1);
+            }
+        } catch (InterruptedIOException ex) {
+            // nothing to read but the connection is still open
+        } catch (IOException ex) {
+            _log.error(connection._clientNameString + " client closing", ex);
+            connection._closed = true;
+        }
+
+        if (connection._closed) {
+            _connections.remove(_probeIndex);
+            close(connection);
+        }
+    }
+
+
+
+    private void close(Connection connection) {
+        _log.info(connection._clientNameString + " client finished");
+
+        SerialControlClient.getClientRegistry().unregister(connection._registryHandle, connection);
+        connection._outboundQueue.close();
+        try {
+            connection._socket.close();
+        } catch (IOException ex) {
+            _log.error(ex);
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+package com.integ.serialcontrol;
+
+import java.io.IOException;
+
+/**
+ * A relay action decoded from a Jrmon command. The action does not depend on the output states at
+ * the time it was parsed. Each affected output is either forced to a state, toggled or left as is,
+ * so the same action can be applied again later against whatever the outputs are then.
+ */
+public class RelayAction {
+
+    /* the outputs that the action writes */
+    int _mask;
+    /* the outputs that are forced to the matching bit in _forceBits */
+    int _forceMask;
+    int _forceBits;
+    /* the outputs that are inverted after the forced states are applied */
+    int _toggleBits;
+
+    boolean _pulse;
+    int _duration;
+
+
+
+    public RelayAction() {
+        reset();
+    }
+
+
+
+    public RelayAction(RelayAction relayAction) {
+        _mask = relayAction._mask;
+        _forceMask = relayAction._forceMask;
+        _forceBits = relayAction._forceBits;
+        _toggleBits = relayAction._toggleBits;
+        _pulse = relayAction._pulse;
+        _duration = relayAction._duration;
+    }
+
+
+
+    void reset() {
+        _mask = 0;
+        _forceMask = 0;
+        _forceBits = 0;
+        _toggleBits = 0;
+        _pulse = false;
+        _duration = 1000;
+    }
+
+
+
+    void close(int bits) {
+        _mask |= bits;
+        _forceMask |= bits;
+        _forceBits |= bits;
+        _toggleBits &= ~bits;
+    }
+
+
+
+    void open(int bits) {
+        _mask |= bits;
+        _forceMask |= bits;
+        _forceBits &= ~bits;
+        _toggleBits &= ~bits;
+    }
+
+
+
+    void toggle(int bits) {
+        _mask |= bits;
+        _toggleBits ^= bits;
+    }
+
+
+
+    /**
+     * adds the outputs to the mask without changing their state.  the outputs are written with
+     * whatever state they are in when the action is applied.
+     */
+    void select(int bits) {
+        _mask |= bits;
+    }
+
+
+
+    /**
+     * folds the next action into this one so that applying this action has the same result as
+     * applying the original action followed by the next one.  the pulse settings are not changed.
+     */
+    void merge(RelayAction next) {
+        _mask |= next._mask;
+        _forceBits = (_forceBits & ~next._forceMask) | next._forceBits;
+        _forceMask |= next._forceMask;
+        _toggleBits = (_toggleBits & ~next._forceMask) ^ next._toggleBits;
+    }
+
+
+
+    public int getMask() {
+        return _mask;
+    }
+
+
+
+    public boolean isPulse() {
+        return _pulse;
+    }
+
+
+
+    public int getDuration() {
+        return _duration;
+    }
+
+
+
+    /**
+     * @return the output states that result from applying this action to the given states
+     */
+    public int getStates(int currentStates) {
+        return ((currentStates & ~_forceMask) | _forceBits) ^ _toggleBits;
+    }
+
+
+
+    /**
+     * an action that forces every output it touches does not need the current output states
+     */
+    boolean needsCurrentStates() {
+        return _forceMask != _mask || 0 != _toggleBits;
+    }
+
+
+
+    /**
+     * writes the outputs with one call using the given states as the current output states
+     */
+    void write(IoBackend ioBackend, int currentStates) throws IOException {
+        if (0 == _mask) return;
+
+        int states = getStates(currentStates);
+        if (_pulse) {
+            ioBackend.setOutputPulsed(states, _mask, _duration);
+        } else {
+            ioBackend.setOutputStates(states, _mask);
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+package com.integ.serialcontrol;
+
+/**
+ * A compiled relay sequence. The steps are a comma separated list of Jrmon relay commands, delays
+ * written "d=500" in milliseconds and an optional "loop" or "loop=3" at the end that starts the
+ * steps over, forever or the given number of more times. For example "c1,d=500,o1,d=500,loop"
+ * flashes relay 1. The relay commands between two delays are merged into one action so they are
+ * written together. A sequence is never modified once compiled so one can be run many times at
+ * once.
+ */
+public class Sequence {
+
+    /* loop forever */
+    public static final int LOOP_FOREVER = -1;
+
+    /* the action to apply before each delay, null where there is nothing to apply.  there is one
+       more action than there are delays */
+    private final RelayAction[] _actions;
+    private final int[] _delays;
+    /* how many more times the steps are run, LOOP_FOREVER or 0 for once */
+    private final int _loopCount;
+
+
+
+    private Sequence(RelayAction[] actions, int[] delays, int loopCount) {
+        _actions = actions;
+        _delays = delays;
+        _loopCount = loopCount;
+    }
+
+
+
+    /**
+     * @return the number of delays.  the steps are the action at index 0, the delay at index 0,
+     * the action at index 1 and so on, ending with the action at the delay count.
+     */
+    public int getDelayCount() {
+        return _delays.length;
+    }
+
+
+
+    /**
+     * @return the action before the delay at the index, or null if there is nothing to apply
+     */
+    public RelayAction getAction(int index) {
+        return _actions[index];
+    }
+
+
+
+    public int getDelay(int index) {
+        return _delays[index];
+    }
+
+
+
+    public int getLoopCount() {
+        return _loopCount;
+    }
+
+
+
+    /**
+     * compiles the steps.  a pulse is not allowed, it is written as a close, a delay and an open.
+     * a loop needs a delay so that it cannot spin.
+     *
+     * @return the sequence or null if the steps are not valid
+     */
+    public static Sequence compile(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+
+        // count the delays to size the arrays
+        int delayCount = 0;
+        for (int i = offset; i < end; i++) {
+            if ('d' == bytes[i]) delayCount++;
+        }
+
+        RelayAction[] actions = new RelayAction[delayCount + 1];
+        int[] delays = new int[delayCount];
+        int loopCount = 0;
+        boolean looped = false;
+
+        RelayAction relayAction = new RelayAction();
+        int delayIndex = 0;
+        int begin = offset;
+        while (begin <= end) {
+            int segmentEnd = begin;
+            while (segmentEnd < end && ',' != bytes[segmentEnd]) {
+                segmentEnd++;
+            }
+            int segmentBegin = begin;
+            int segmentLast = segmentEnd;
+            while (segmentBegin < segmentLast && ' ' == bytes[segmentBegin]) {
+                segmentBegin++;
+            }
+            while (segmentLast > segmentBegin && ' ' == bytes[segmentLast - 1]) {
+                segmentLast--;
+            }
+            begin = segmentEnd + 1;
+
+            // nothing may follow the loop
+            if (looped || segmentBegin == segmentLast) return null;
+
+            if ('d' == bytes[segmentBegin]) {
+                int delay = parseParameter(bytes, segmentBegin + 1, segmentLast);
+                if (delay < 0) return null;
+                delays[delayIndex++] = delay;
+                continue;
+            }
+
+            if (isWord(bytes, segmentBegin, segmentLast, "loop")) {
+                loopCount = LOOP_FOREVER;
+                looped = true;
+                continue;
+            }
+            if (isWord(bytes, segmentBegin, Math.min(segmentLast, segmentBegin + 4), "loop")) {
+                loopCount = parseParameter(bytes, segmentBegin + 4, segmentLast);
+                if (loopCount < 0) return null;
+                looped = true;
+                continue;
+            }
+
+            if (!Jrmon.parse(bytes, segmentBegin, segmentLast - segmentBegin, relayAction)
+                    || relayAction.isPulse() || 0 == relayAction.getMask()) {
+                return null;
+            }
+            if (null == actions[delayIndex]) actions[delayIndex] = new RelayAction();
+            actions[delayIndex].merge(relayAction);
+        }
+
+        // a 'd' that did not start a delay was in a relay command
+        if (delayIndex != delays.length) return null;
+
+        // a loop with no time in it would never give up the engine thread
+        if (0 != loopCount) {
+            long total = 0;
+            for (int i = 0; i < delays.length; i++) {
+                total += delays[i];
+            }
+            if (0 == total) return null;
+        }
+
+        return new Sequence(actions, delays, loopCount);
+    }
+
+
+
+    /**
+     * @return the number after the '=' from the index to the end, or -1 if it is not one
+     */
+    private static int parseParameter(byte[] bytes, int index, int end) {
+        if (index >= end || '=' != bytes[index]) return -1;
+        index++;
+        if (index == end) return -1;
+
+        int value = 0;
+        for (; index < end; index++) {
+            if (bytes[index] < '0' || '9' < bytes[index]) return -1;
+            int digit = bytes[index] - '0';
+            if (value > (Integer.MAX_VALUE - digit) / 10) return -1;
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+
+
+    private static boolean isWord(byte[] bytes, int begin, int end, String word) {
+        if (end - begin != word.length()) return false;
+        for (int i = 0; i < word.length(); i++) {
+            if (word.charAt(i) != bytes[begin + i]) return false;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,308 @@
+package com.integ.serialcontrol;
+
+import com.integ.common.logging.AppLog;
+import java.util.ArrayList;
+
+/**
+ * Runs relay sequences on the unit so timed patterns do not depend on a client sending each step
+ * over the link. Every running sequence waits in a hashed timer wheel with one slot per
+ * millisecond tick, so scheduling and firing a step costs the same with one sequence running or
+ * hundreds. One thread advances the wheel. The actions of every step that comes due while it is
+ * awake are merged and written with a single output write.
+ *
+ * A sequence runs under a name. Starting a name that is already running replaces it, and a
+ * sequence that is stopped leaves the outputs as they are.
+ */
+public class SequenceEngine
+        implements Runnable {
+
+    /* the number of slots in the wheel, a power of 2.  a step further away than this waits in its
+       slot for more turns of the wheel */
+    private static final int WHEEL_SIZE = 256;
+    /* a gap this many ticks or more between two passes is taken as the clock being set forward
+       rather than the thread running late */
+    private static final int CLOCK_JUMP = 5000;
+
+    private static final SequenceEngine ENGINE = new SequenceEngine();
+
+
+
+    /* a running sequence */
+    private static class Run {
+
+        final String _name;
+        final Sequence _sequence;
+
+        /* the index of the action applied when the run is next due */
+        int _step = 0;
+        int _loopsLeft;
+        long _dueTick;
+        boolean _stopped = false;
+
+        /* the next run in the same slot */
+        Run _next;
+
+
+
+        Run(String name, Sequence sequence) {
+            _name = name;
+            _sequence = sequence;
+            _loopsLeft = sequence.getLoopCount();
+        }
+    }
+
+    /* everything is guarded by this except the tick action, which only the engine thread uses */
+    private final Run[] _wheel = new Run[WHEEL_SIZE];
+    private final ArrayList<Run> _runs = new ArrayList<>();
+    /* the time of tick 0 and the last tick that was processed */
+    private long _startTime = System.currentTimeMillis();
+    private long _tick = 0;
+    private long _writeCount = 0;
+
+    private final RelayAction _tickAction = new RelayAction();
+
+    private Thread _thread = null;
+
+
+
+    public static SequenceEngine get() {
+        return ENGINE;
+    }
+
+
+
+    /**
+     * starts the sequence under the name, stopping the one already running under it.  the first
+     * step is applied on the next tick.
+     *
+     * @return false if MaxSequences are already running
+     */
+    public synchronized boolean start(String name, Sequence sequence) {
+        stop(name);
+        if (_runs.size() >= Config.getMaxSequences()) return false;
+
+        if (0 == _runs.size()) {
+            // nothing was running so the ticks since then do not need to be walked
+            _tick = getNowTick();
+        }
+
+        Run run = new Run(name, sequence);
+        _runs.add(run);
+        schedule(run, _tick + 1);
+
+        if (null == _thread) {
+            _thread = new Thread(this);
+            _thread.setName("SerialControl-SequenceEngine");
+            _thread.setDaemon(true);
+            _thread.start();
+        }
+        notifyAll();
+        return true;
+    }
+
+
+
+    /**
+     * @return true if a sequence was running under the name
+     */
+    public synchronized boolean stop(String name) {
+        for (int i = 0; i < _runs.size(); i++) {
+            Run run = _runs.get(i);
+            if (run._name.equals(name)) {
+                // the run is dropped from the wheel when its slot comes up
+                run._stopped = true;
+                _runs.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+
+    /**
+     * @return the number of sequences that were running
+     */
+    public synchronized int stopAll() {
+        int count = _runs.size();
+        for (int i = 0; i < count; i++) {
+            _runs.get(i)._stopped = true;
+        }
+        _runs.clear();
+        return count;
+    }
+
+
+
+    /**
+     * appends the number of running sequences and their names, like "running=2 light,start"
+     */
+    public synchronized void appendStatus(AsciiBuffer out) {
+        out.append("running=").append(_runs.size());
+        for (int i = 0; i < _runs.size(); i++) {
+            out.append((0 == i) ? ' ' : ',').append(_runs.get(i)._name);
+        }
+    }
+
+
+
+    /**
+     * @return the number of combined output writes
+     */
+    public synchronized long getWriteCount() {
+        return _writeCount;
+    }
+
+
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                boolean write;
+                synchronized (this) {
+                    if (0 == _runs.size()) {
+                        wait();
+                        continue;
+                    }
+                    long wait = getWait();
+                    if (0 < wait) {
+                        wait(wait);
+                        continue;
+                    }
+
+                    _tickAction.reset();
+                    long nowTick = getNowTick();
+                    while (_tick < nowTick) {
+                        _tick++;
+                        fire(_tick);
+                    }
+                    write = 0 != _tickAction.getMask();
+                    if (write) _writeCount++;
+                }
+
+                // written without holding the lock so that starting and stopping do not wait for
+                // JANOS
+                if (write) {
+                    IoBackend ioBackend = IoBackends.get();
+                    int currentStates = _tickAction.needsCurrentStates() ? ioBackend.getOutputStates() : 0;
+                    _tickAction.write(ioBackend, currentStates);
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } catch (Exception ex) {
+                AppLog.error("error running relay sequences", ex);
+            }
+        }
+    }
+
+
+
+    /**
+     * @return how long to wait for the next tick with something in its slot, 0 if one is due now.
+     * the lock must be held.
+     */
+    private long getWait() {
+        long nowTick = getNowTick();
+        for (int i = 1; i < WHEEL_SIZE; i++) {
+            long tick = _tick + i;
+            if (null != _wheel[(int) tick & (WHEEL_SIZE - 1)]) {
+                return Math.max(0, tick - nowTick);
+            }
+        }
+        // every run is a turn of the wheel or more away.  wake up short of a full turn so that
+        // the slot at the last processed tick is looked at again before it comes around
+        return Math.max(0, _tick + WHEEL_SIZE - 1 - nowTick);
+    }
+
+
+
+    /**
+     * applies the steps of every run due at the tick and schedules their next steps.  the lock
+     * must be held.
+     */
+    private void fire(long tick) {
+        int slot = (int) tick & (WHEEL_SIZE - 1);
+        Run run = _wheel[slot];
+        _wheel[slot] = null;
+
+        while (null != run) {
+            Run next = run._next;
+            run._next = null;
+
+            if (run._stopped) {
+                // dropped
+            } else if (run._dueTick > tick) {
+                // due on a later turn of the wheel
+                run._next = _wheel[slot];
+                _wheel[slot] = run;
+            } else {
+                advance(run);
+            }
+            run = next;
+        }
+    }
+
+
+
+    /**
+     * applies the run's actions up to its next delay and schedules it for the end of the delay.
+     * the lock must be held.
+     */
+    private void advance(Run run) {
+        Sequence sequence = run._sequence;
+        int delayCount = sequence.getDelayCount();
+        while (true) {
+            RelayAction relayAction = sequence.getAction(run._step);
+            if (null != relayAction) _tickAction.merge(relayAction);
+
+            if (run._step == delayCount) {
+                // the end of the steps
+                if (0 == run._loopsLeft) {
+                    _runs.remove(run);
+                    return;
+                }
+                if (0 < run._loopsLeft) run._loopsLeft--;
+                run._step = 0;
+                continue;
+            }
+
+            int delay = sequence.getDelay(run._step);
+            run._step++;
+            if (0 < delay) {
+                // the delay is from when the step was due so that late ticks do not add up
+                schedule(run, run._dueTick + delay);
+                return;
+            }
+        }
+    }
+
+
+
+    private void schedule(Run run, long dueTick) {
+        int slot = (int) dueTick & (WHEEL_SIZE - 1);
+        run._dueTick = dueTick;
+        run._next = _wheel[slot];
+        _wheel[slot] = run;
+    }
+
+
+
+    /**
+     * @return the tick for the current time.  if the clock was set back, or jumped ahead by
+     * CLOCK_JUMP or more, the ticks pick up from the last one processed.  walking every
+     * millisecond of a jump forward would hold the lock for as long as the jump and replay every
+     * step that fell in it, so the running sequences are shifted by the jump instead.  a thread
+     * that really was held up for that long is treated the same way.  a wait that ran a little
+     * long is caught up tick by tick.
+     */
+    private long getNowTick() {
+        long nowTick = System.currentTimeMillis() - _startTime;
+        if (nowTick < _tick || _tick + CLOCK_JUMP <= nowTick) {
+            _startTime += nowTick - _tick;
+            nowTick = _tick;
+        }
+        return nowTick;
+    }
+
+}
@@ -3,104 +3,353 @@ package com.integ.serialcontrol;
 import com.integ.common.logging.AppLog;
 import com.integ.common.logging.Logger;
 import com.integ.common.logging.SystemOutLog;
-import com.integ.common.net.AsciiCommandClient;
 import com.integ.common.net.BytesReceivedEvent;
 import com.integ.common.net.ClientListener;
-import com.integpg.system.JANOS;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.text.QuickDateFormat;
-import java.util.ArrayList;
 import java.util.EventObject;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class SerialControlClient
-        implements ClientListener {
+        implements ClientListener, BroadcastClient, CommandFramer.Listener, CommandQueue.Handler {
 
-    private static final QuickDateFormat QUICK_DATE_FORMAT = new QuickDateFormat("MM/dd/yy HH:mm:ss.fff");
+    private static final ClientRegistry CLIENTS = new ClientRegistry(8);
 
-    private static final Pattern IO_CONTROL_PATTERN = Pattern.compile("([copt\\+\\d\\*]+(=\\d+)?)$", Pattern.CASE_INSENSITIVE);
-    private static final Pattern DIN_QUERY_PATTERN = Pattern.compile("din(\\d+)\\?$", Pattern.CASE_INSENSITIVE);
-    private static final Pattern ROUT_QUERY_PATTERN = Pattern.compile("rout(\\d+)\\?$", Pattern.CASE_INSENSITIVE);
-
-    private static final ArrayList<SerialControlClient> CLIENTS = new ArrayList<>();
-
-    // initially we will log to the system.out stream unless setLog is called
-    private Logger _log = SystemOutLog.getLogger();
+    // initially we will log to the system.out stream unless setLog is called.  the lines are
+    // written by the log writer thread so logging never holds up a command or an alert
+    private AsyncLog _log = AsyncLog.getLogger(SystemOutLog.getLogger());
 
     private final String _clientNameString;
+    private final InputStream _inputStream;
     private final OutputStream _outputStream;
-    private final ByteArrayOutputStream _byteArrayOutputStream = new ByteArrayOutputStream();
-
-    private final AsciiCommandClient _asciiCommandClient;
+    /* replies are encoded here.  guarded by this client */
+    private final AsciiBuffer _frameBuffer = new AsciiBuffer(64);
+
+    /* the reader thread frames and handles the commands with these */
+    private final CommandFramer _commandFramer = new CommandFramer(this);
+    private final CommandDispatcher _commandDispatcher = new CommandDispatcher();
+    private final BinaryProtocol _binaryProtocol = new BinaryProtocol();
+    private final AsciiBuffer _binaryReply = new AsciiBuffer(32);
+    /* replies to the commands the CommandExecutor runs are encoded here.  only used by the thread
+       running this client's command */
+    private final AsciiBuffer _queuedReplyBuffer = new AsciiBuffer(64);
+    /* when the command being run was read.  a queued reply carries it so the writer thread can
+       record the latency once the reply is written */
+    private long _commandReceivedTime = 0;
+    private final Subscription _subscription = new Subscription();
+    /* the commands waiting for the CommandExecutor, null if the reader thread runs them itself */
+    private final CommandQueue _commandQueue;
+    /* which latency histograms the client records in, see LatencyStats */
+    private volatile int _transport = LatencyStats.TCP;
+    /* when the reader thread read the bytes it is handling */
+    private long _receivedTime = 0;
+    /* set once the client has switched to the binary protocol.  alerts are then sent binary */
+    private volatile boolean _binary = false;
+    /* false for a connection that cannot be reopened, like the serial port.  it is never closed
+       for falling behind */
+    private volatile boolean _disconnectable = true;
+    /* replies dropped because the connection could not be closed.  only used by the thread
+       running this client's command */
+    private long _droppedReplyCount = 0;
+
+    /* the replies waiting to write.  the writer thread does not start writing alerts while there
+       are any, so a reply waits for at most the one write in progress.  changed under _replyLock
+       while holding this client's lock or before taking it */
+    private final Object _replyLock = new Object();
+    private volatile int _waitingReplyCount = 0;
+
+    /* unsolicited alerts wait here until the writer thread sends them */
+    private final OutboundQueue _outboundQueue;
+    private boolean _disconnecting = false;
+
+    /* alerts gathered within the flush window are written together.  only used by the writer */
+    private final AsciiBuffer _batchBuffer = new AsciiBuffer(256);
+    private Frame[] _batchFrames = new Frame[16];
+    private int _batchFrameCount = 0;
+
+    /* the handle from registering for broadcasts, -1 while not registered */
+    private int _registryHandle = -1;
 
 
 
     public SerialControlClient(String clientNameString, InputStream inputStream, OutputStream outputStream) {
+        this(clientNameString, inputStream, outputStream,
+                OutboundQueue.parseOverflowPolicy(Config.getOutboundOverflowPolicy()));
+    }
+
+
+
+    public SerialControlClient(String clientNameString, InputStream inputStream, OutputStream outputStream,
+            int overflowPolicy) {
         _clientNameString = clientNameString;
+        _inputStream = inputStream;
         _outputStream = outputStream;
+        _outboundQueue = new OutboundQueue(Config.getOutboundQueueSize(), overflowPolicy,
+                Config.getCollapseAlerts());
+        _commandDispatcher.setSubscription(_subscription);
+        _commandQueue = CommandExecutor.isEnabled()
+                ? new CommandQueue(clientNameString, Config.getCommandQueueSize(), this) : null;
 
         //
-        // create an ascii command client four our serial port
-        _asciiCommandClient = new AsciiCommandClient(clientNameString, inputStream);
-        _asciiCommandClient.setTerminationBytes(Config.getIncomingTerminationString());
-        _asciiCommandClient.setClientListener(this);
-        _asciiCommandClient.start();
+        // start the thread that writes the queued alerts so that a broadcast never waits on us
+        Thread writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        });
+        writerThread.setName(clientNameString + " writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        //
+        // start the thread that reads and handles the commands.  it frames the commands itself
+        // since a client can switch to the binary protocol
+        Thread readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runReader();
+            }
+        });
+        readerThread.setName(clientNameString + " reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
     }
 
 
 
     public void setLog(Logger log) {
-        _log = log;
-        _asciiCommandClient.setLog(_log);
+        _log = AsyncLog.getLogger(log);
     }
 
 
 
-    public static void broadcast(String s, long timestamp) {
-        synchronized (CLIENTS) {
-            for (SerialControlClient serialControlClient : CLIENTS) {
-                try {
-                    // send the output string with the acutal transition time from the iolog
-                    serialControlClient.send(s, timestamp);
-                } catch (Exception ex) {
-                    // do nothing
+    /**
+     * marks a connection that cannot be reopened once closed.  a reply that finds too many
+     * replies already waiting is dropped instead of closing the connection.
+     */
+    public void setDisconnectable(boolean disconnectable) {
+        _disconnectable = disconnectable;
+    }
+
+
+
+    /**
+     * sets the transport the client's latencies are recorded for.  the default is LatencyStats.TCP
+     */
+    public void setTransport(int transport) {
+        _transport = transport;
+    }
+
+
+
+    /**
+     * queues an I/O alert for every connected client that subscribes to the channel.  the alert
+     * is only encoded if a client wants it, and then once with the counter and once without as the
+     * clients need them.
+     *
+     * @param suppressedCount the number of transitions that the rate limit held back before this one
+     */
+    public static void broadcastAlert(String typeString, boolean isInput, int channel, boolean state,
+            long timestamp, int counter, int suppressedCount, long seq) {
+        int channelKey = OutboundQueue.getChannelKey(isInput, channel);
+        Frame frame = null;
+        Frame frameWithCount = null;
+
+        BroadcastClient[] clients = CLIENTS.getSlots();
+        for (int i = 0; i < clients.length; i++) {
+            BroadcastClient broadcastClient = clients[i];
+            if (null == broadcastClient) continue;
+
+            Subscription subscription = broadcastClient.getSubscription();
+            if (!subscription.matches(isInput, channel)) continue;
+
+            if (isInput && subscription.includesCounts()) {
+                if (null == frameWithCount) {
+                    frameWithCount = FrameEncoder.encodeAlert(typeString, isInput, channel, state,
+                            timestamp, counter, true, suppressedCount, seq);
                 }
+                broadcastClient.queueAlert(frameWithCount, channelKey);
+            } else {
+                if (null == frame) {
+                    frame = FrameEncoder.encodeAlert(typeString, isInput, channel, state,
+                            timestamp, counter, false, suppressedCount, seq);
+                }
+                broadcastClient.queueAlert(frame, channelKey);
             }
         }
     }
 
 
 
-    public synchronized void send(String s) {
+    /**
+     * @return the registry of the clients that receive broadcasts.  other front ends register
+     * their connections here.
+     */
+    static ClientRegistry getClientRegistry() {
+        return CLIENTS;
+    }
+
+
+
+    @Override
+    public Subscription getSubscription() {
+        return _subscription;
+    }
+
+
+
+    @Override
+    public void queueAlert(Frame frame, int channelKey) {
+        if (!_outboundQueue.offer(frame, channelKey)) {
+            disconnect(String.format("%s outbound queue is full after %d alerts were dropped, disconnecting",
+                    _clientNameString, _outboundQueue.getDroppedCount()));
+        }
+    }
+
+
+
+    @Override
+    public void appendSummary(AsciiBuffer out) {
+        out.append("client ").append(_clientNameString).append(" queue ");
+        _outboundQueue.appendSummary(out);
+    }
+
+
+
+    public static int getClientCount() {
+        return CLIENTS.size();
+    }
+
+
+
+    /**
+     * appends the summary of every connected client, each after a ';'
+     */
+    public static void appendClientSummaries(AsciiBuffer out) {
+        BroadcastClient[] clients = CLIENTS.getSlots();
+        for (int i = 0; i < clients.length; i++) {
+            BroadcastClient broadcastClient = clients[i];
+            if (null == broadcastClient) continue;
+
+            out.append(';');
+            broadcastClient.appendSummary(out);
+        }
+    }
+
+
+
+    public void send(String s) {
         send(s, System.currentTimeMillis());
     }
 
 
 
-    public synchronized void send(String s, long timestamp) {
-        try {
-            // reset the byte output array
-            _byteArrayOutputStream.reset();
-
-            // if client should respond with datestamp
-            if (Config.getSendDateStamp()) {
-                // first send the datestamp
-                _byteArrayOutputStream.write(QUICK_DATE_FORMAT.format(timestamp).getBytes());
-                _byteArrayOutputStream.write(' ');
+    /**
+     * sends a reply.  replies go ahead of the alerts that are waiting to be written.
+     */
+    public void send(String s, long timestamp) {
+        beginReply();
+        synchronized (this) {
+            try {
+                int textOffset = FrameEncoder.encode(_frameBuffer, s, timestamp);
+                write(_frameBuffer.getBytes(), _frameBuffer.getLength(), textOffset, s.length());
+            } finally {
+                endReply();
             }
+        }
+    }
+
+
+
+    /**
+     * sends a reply.  replies go ahead of the alerts that are waiting to be written.  the reply to
+     * a command run by the CommandExecutor is handed to the writer thread so the executor thread
+     * never waits on the socket.
+     */
+    public void send(byte[] bytes, int offset, int length, long timestamp) {
+        if (null != _commandQueue) {
+            int textOffset = FrameEncoder.encode(_queuedReplyBuffer, bytes, offset, length, timestamp);
+            _log.traffic(_clientNameString, "sent", _queuedReplyBuffer.getBytes(), textOffset, length);
+            queueReply(_queuedReplyBuffer.getBytes(), _queuedReplyBuffer.getLength());
+            return;
+        }
+
+        beginReply();
+        synchronized (this) {
+            try {
+                int textOffset = FrameEncoder.encode(_frameBuffer, bytes, offset, length, timestamp);
+                write(_frameBuffer.getBytes(), _frameBuffer.getLength(), textOffset, length);
+            } finally {
+                endReply();
+            }
+        }
+    }
+
+
 
-            // append text
-            _byteArrayOutputStream.write(s.getBytes());
+    /**
+     * copies the encoded reply into a frame for the writer thread.  a client that has let a full
+     * queue of replies pile up is not reading and is disconnected, unless it cannot be reopened,
+     * in which case the reply is dropped.
+     */
+    private void queueReply(byte[] bytes, int length) {
+        byte[] frameBytes = new byte[length];
+        System.arraycopy(bytes, 0, frameBytes, 0, length);
+        if (_outboundQueue.offerReply(new Frame(frameBytes, 0, 0, null, _commandReceivedTime))) return;
+
+        if (!_disconnectable) {
+            _droppedReplyCount++;
+            _log.warn(String.format("%s has %d replies waiting to write, dropped %d replies",
+                    _clientNameString, Config.getOutboundQueueSize(), _droppedReplyCount));
+            return;
+        }
+        disconnect(String.format("%s has %d replies waiting to write, disconnecting",
+                _clientNameString, Config.getOutboundQueueSize()));
+    }
 
-            // append the termination characters
-            _byteArrayOutputStream.write(Config.getOutgoingTerminationString().getBytes());
 
+
+    private void beginReply() {
+        synchronized (_replyLock) {
+            _waitingReplyCount++;
+        }
+    }
+
+
+
+    /**
+     * lets the writer thread go on with the alerts once no replies are waiting.  this client's
+     * lock must be held so the writer cannot miss the notify.
+     */
+    private void endReply() {
+        synchronized (_replyLock) {
+            _waitingReplyCount--;
+        }
+        notifyAll();
+    }
+
+
+
+    /**
+     * waits until no replies are waiting.  this client's lock must be held.
+     */
+    private void awaitReplies() throws InterruptedException {
+        while (0 < _waitingReplyCount) {
+            wait();
+        }
+    }
+
+
+
+    /**
+     * writes an encoded frame.  the text offset and length locate the text for the log.
+     */
+    private synchronized void write(byte[] frame, int frameLength, int textOffset, int textLength) {
+        try {
             if (_outputStream != null) {
-                _outputStream.write(_byteArrayOutputStream.toByteArray());
+                _outputStream.write(frame, 0, frameLength);
                 // flush the buffer to make sure it went
                 _outputStream.flush();
                 // log what was sent. since we are using the timestamp obtained at
@@ -108,7 +357,7 @@ public class SerialControlClient
                 // with the recieve client.  we can synchronize on a log lock to make
                 // sure this doesnt happen or we can let it happen and let it be known
                 // that it can happen
-                _log.info(_clientNameString + " sent: " + s);
+                _log.traffic(_clientNameString, "sent", frame, textOffset, textLength);
             }
         } catch (IOException ex) {
             _log.error(ex);
@@ -119,15 +368,43 @@ public class SerialControlClient
 
 
 
-    @Override
-    public void bytesReceived(BytesReceivedEvent evt) {
-        byte[] bytes = evt.getBytes();
-        String message = new String(bytes);
+    /**
+     * writes a binary response as it is, ahead of the waiting alerts.  like send, the response to
+     * a command run by the CommandExecutor is handed to the writer thread.
+     */
+    private void writeBinary(byte[] bytes, int length) {
+        if (null != _commandQueue) {
+            _log.traffic(_clientNameString, "sent binary response", bytes[2] & 0xff);
+            queueReply(bytes, length);
+            return;
+        }
+
+        beginReply();
+        synchronized (this) {
+            try {
+                if (_outputStream != null) {
+                    _outputStream.write(bytes, 0, length);
+                    _outputStream.flush();
+                    _log.traffic(_clientNameString, "sent binary response", bytes[2] & 0xff);
+                }
+            } catch (IOException ex) {
+                _log.error(ex);
+                AppLog.error(ex);
+            } finally {
+                endReply();
+            }
+        }
+    }
+
 
-        _log.info(String.format("%s received: %s", _clientNameString, message));
 
+    /**
+     * handles one ASCII command
+     */
+    @Override
+    public void bytesReceived(BytesReceivedEvent evt) {
         try {
-            processMessage(message);
+            commandReceived(evt.getBytes(), evt.getOffset(), evt.getLength());
         } catch (IOException ex) {
             _log.error(ex);
             AppLog.error(ex);
@@ -136,15 +413,111 @@ public class SerialControlClient
 
 
 
+    @Override
+    public void commandReceived(byte[] bytes, int offset, int length) throws IOException {
+        _log.traffic(_clientNameString, "received", bytes, offset, length);
+
+        // the bytes after the switch are binary frames.  the framer has to know that now since the
+        // command may not run until later
+        if (CommandDispatcher.isSwitchToBinary(bytes, offset, length)) _commandFramer.setBinary(true);
+
+        handle(CommandQueue.ASCII, bytes, offset, length);
+    }
+
+
+
+    @Override
+    public void binaryFrameReceived(byte[] bytes, int offset, int length) throws IOException {
+        _log.traffic(_clientNameString, "received binary request", (0 < length) ? bytes[offset] & 0xff : 0);
+
+        if (BinaryProtocol.isSwitchToAscii(bytes, offset, length)) _commandFramer.setBinary(false);
+
+        handle(CommandQueue.BINARY, bytes, offset, length);
+    }
+
+
+
+    @Override
+    public void binaryFrameRejected() throws IOException {
+        _log.warn(_clientNameString + " received a binary frame with a bad checksum");
+
+        handle(CommandQueue.REJECTED, _binaryReply.getBytes(), 0, 0);
+    }
+
+
+
+    /**
+     * runs the command now or hands it to the CommandExecutor.  handing it over waits while this
+     * client already has CommandQueueSize commands waiting.
+     */
+    private void handle(int kind, byte[] bytes, int offset, int length) throws IOException {
+        if (null == _commandQueue) {
+            execute(kind, bytes, offset, length, _receivedTime);
+            return;
+        }
+
+        try {
+            _commandQueue.submit(kind, bytes, offset, length, _receivedTime);
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("interrupted waiting for the command queue");
+        }
+    }
+
+
+
+    /**
+     * runs a command for the CommandExecutor
+     */
+    @Override
+    public void execute(int kind, byte[] bytes, int length, long receivedTime) {
+        execute(kind, bytes, 0, length, receivedTime);
+    }
+
+
+
+    private void execute(int kind, byte[] bytes, int offset, int length, long receivedTime) {
+        _commandReceivedTime = receivedTime;
+        boolean replied = true;
+        switch (kind) {
+            case CommandQueue.ASCII:
+                try {
+                    replied = processMessage(bytes, offset, length);
+                } catch (IOException ex) {
+                    _log.error(_clientNameString + " error processing command", ex);
+                }
+                break;
+
+            case CommandQueue.BINARY:
+                _binaryReply.reset();
+                int result = _binaryProtocol.process(bytes, offset, length, _binaryReply);
+                writeBinary(_binaryReply.getBytes(), _binaryReply.getLength());
+
+                // the response to the switch is the last thing sent in binary
+                if (BinaryProtocol.SWITCH_TO_ASCII == result) _binary = false;
+                break;
+
+            case CommandQueue.REJECTED:
+                // a frame that could not be read is not timed
+                _commandReceivedTime = 0;
+                _binaryReply.reset();
+                BinaryProtocol.appendError(_binaryReply, BinaryProtocol.ERROR_CHECKSUM);
+                writeBinary(_binaryReply.getBytes(), _binaryReply.getLength());
+                return;
+        }
+
+        // a reply handed to the writer thread is timed once it has been written
+        if (null == _commandQueue || !replied) LatencyStats.recordCommand(_transport, receivedTime);
+    }
+
+
+
     @Override
     public void clientStarted(EventObject evt) {
         _log.info(_clientNameString + " client started");
 
         //
         // add this serial client to the clients list
-        synchronized (CLIENTS) {
-            CLIENTS.add(this);
-        }
+        _registryHandle = CLIENTS.register(this);
     }
 
 
@@ -153,63 +526,229 @@ public class SerialControlClient
     public void clientFinished(EventObject evt) {
         _log.info(_clientNameString + " client finished");
 
-        synchronized (CLIENTS) {
-            if (CLIENTS.contains(this)) {
-                CLIENTS.remove(this);
+        if (-1 != _registryHandle) {
+            CLIENTS.unregister(_registryHandle, this);
+            _registryHandle = -1;
+        }
+
+        // let the writer thread exit and drop the commands that have not run
+        _outboundQueue.close();
+        if (null != _commandQueue) _commandQueue.close();
+    }
+
+
+
+    /**
+     * reads from the input stream until it closes
+     */
+    private void runReader() {
+        clientStarted(new EventObject(this));
+
+        byte[] buffer = new byte[1024];
+        try {
+            while (true) {
+                int bytesRead = _inputStream.read(buffer);
+                if (-1 == bytesRead) throw new IOException("end of stream");
+                _receivedTime = System.currentTimeMillis();
+
+                try {
+                    _commandFramer.received(buffer, 0, bytesRead);
+                } catch (Exception ex) {
+                    _log.error(_clientNameString + " error processing read bytes", ex);
+                }
             }
+        } catch (Exception ex) {
+            try {
+                _inputStream.close();
+            } catch (IOException ex1) {
+            }
+
+            _log.error(_clientNameString + " client closing", ex);
+            clientFinished(new EventObject(this));
         }
     }
 
 
 
-    private void processMessage(String message) throws IOException {
-        Matcher matcher;
-        if ((matcher = IO_CONTROL_PATTERN.matcher(message)).find()) {
-//            System.out.println("IO_CONTROL_PATTERN.groupCount(): " + matcher.groupCount());
-//            for (int i = 0; i < matcher.groupCount(); i++) {
-//                System.out.println("  IO_CONTROL_PATTERN.group[" + i + "]: " + matcher.group(i));
-//            }
+    /**
+     * @return the bytes of the alert in the client's protocol or null if it cannot be sent in it
+     */
+    private byte[] getAlertBytes(Frame frame) {
+        return _binary ? frame.getBinaryBytes() : frame.getBytes();
+    }
+
+
 
-            if (1 < matcher.groupCount()) {
-                Jrmon.parseCommand(matcher.group(1));
+    /**
+     * sends the queued alerts until the client finishes.  when a flush window is configured the
+     * alerts that arrive within the window, up to the byte limit, are sent with one write and flush.
+     */
+    private void runWriter() {
+        OutboundQueue.Entry entry = new OutboundQueue.Entry();
+        try {
+            while (_outboundQueue.take(entry)) {
+                if (entry.Reply) {
+                    writeReply(entry.Frame);
+                    entry.Frame = null;
+                    continue;
+                }
+
+                int flushWindow = Config.getFlushWindow();
+                if (0 >= flushWindow) {
+                    writeAlert(entry.Frame);
+                    entry.Frame = null;
+                    continue;
+                }
+
+                //
+                // gather what else arrives before the window closes or the batch is full
+                int flushByteLimit = Config.getFlushByteLimit();
+                long deadline = System.currentTimeMillis() + flushWindow;
+                addToBatch(entry.Frame);
+                Frame reply = null;
+                while (_batchBuffer.getLength() < flushByteLimit) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0 || !_outboundQueue.poll(entry, remaining)) break;
+                    if (entry.Reply) {
+                        // a reply does not wait for the window, it goes right after the alerts
+                        // gathered so far
+                        reply = entry.Frame;
+                        break;
+                    }
+                    addToBatch(entry.Frame);
+                }
+                entry.Frame = null;
+
+                writeBatch();
+                if (null != reply) writeReply(reply);
             }
+        } catch (InterruptedException ex) {
+            // the client is going away
+        }
+    }
+
+
+
+    /**
+     * writes one alert once no replies are waiting
+     */
+    private synchronized void writeAlert(Frame frame) throws InterruptedException {
+        byte[] bytes = getAlertBytes(frame);
+        if (null == bytes) return;
+
+        awaitReplies();
+        write(bytes, bytes.length, frame.getTextOffset(), frame.getTextLength());
+        LatencyStats.recordAlert(_transport, frame.getTimestamp());
+    }
+
 
-        } //
-        // is it a query for input status?
-        else if ((matcher = DIN_QUERY_PATTERN.matcher(message)).find()) {
-//            System.out.println("DIN_QUERY_PATTERN.groupCount(): " + matcher.groupCount());
-//            for (int i = 0; i < matcher.groupCount(); i++) {
-//                System.out.println("  DIN_QUERY_PATTERN.group[" + i + "]: " + matcher.group(i));
-//            }
-
-            int channelNumber = Integer.parseInt(matcher.group(1));
-            int state = ((JANOS.getInputStates() >> (channelNumber - 1)) & 1);
-            String response = String.format("din%d=%d", channelNumber, state);
-            if (Config.getSendCounts()) {
-                int counter = JANOS.getInputCounter(channelNumber - 1);
-                response = String.format("%s,%d", response, counter);
+
+    /**
+     * writes a reply that the CommandExecutor handed over and records the command's latency.  it
+     * was logged when it was queued.
+     */
+    private synchronized void writeReply(Frame frame) {
+        try {
+            if (_outputStream != null) {
+                _outputStream.write(frame.getBytes(), 0, frame.getBytes().length);
+                _outputStream.flush();
+                if (0 < frame.getTimestamp()) LatencyStats.recordCommand(_transport, frame.getTimestamp());
             }
-            send(response);
+        } catch (IOException ex) {
+            _log.error(ex);
+            AppLog.error(ex);
+        }
+    }
 
-        } //
-        // is it a query for output status?
-        else if ((matcher = ROUT_QUERY_PATTERN.matcher(message)).find()) {
-//            System.out.println("ROUT_QUERY_PATTERN.groupCount(): " + matcher.groupCount());
-//            for (int i = 0; i < matcher.groupCount(); i++) {
-//                System.out.println("  ROUT_QUERY_PATTERN.group[" + i + "]: " + matcher.group(i));
-//            }
 
-            int channelNumber = Integer.parseInt(matcher.group(1));
-            int state = ((JANOS.getOutputStates() >> (channelNumber - 1)) & 1);
-            String response = String.format("rout%d=%d", channelNumber, state);
-            send(response);
 
+    private void addToBatch(Frame frame) {
+        byte[] bytes = getAlertBytes(frame);
+        if (null == bytes) return;
+
+        if (_batchFrames.length == _batchFrameCount) {
+            Frame[] batchFrames = new Frame[2 * _batchFrames.length];
+            System.arraycopy(_batchFrames, 0, batchFrames, 0, _batchFrameCount);
+            _batchFrames = batchFrames;
+        }
+        _batchFrames[_batchFrameCount++] = frame;
+        _batchBuffer.append(bytes, 0, bytes.length);
+    }
 
-        } else {
-            send("unknown command: '" + message + "'");
 
+
+    /**
+     * writes the gathered alerts with one write and flush once no replies are waiting
+     */
+    private synchronized void writeBatch() throws InterruptedException {
+        try {
+            awaitReplies();
+            if (_outputStream != null && 0 < _batchFrameCount) {
+                _outputStream.write(_batchBuffer.getBytes(), 0, _batchBuffer.getLength());
+                _outputStream.flush();
+
+                for (int i = 0; i < _batchFrameCount; i++) {
+                    Frame frame = _batchFrames[i];
+                    LatencyStats.recordAlert(_transport, frame.getTimestamp());
+                    _log.traffic(_clientNameString, "sent", frame.getBytes(), frame.getTextOffset(),
+                            frame.getTextLength());
+                }
+            }
+        } catch (IOException ex) {
+            _log.error(ex);
+            AppLog.error(ex);
+        } finally {
+            for (int i = 0; i < _batchFrameCount; i++) {
+                _batchFrames[i] = null;
+            }
+            _batchFrameCount = 0;
+            _batchBuffer.reset();
+        }
+    }
+
+
+
+    /**
+     * closes the connection of a client that has fallen too far behind.  the reader thread then
+     * finishes and removes the client.
+     */
+    private void disconnect(String warning) {
+        synchronized (_outboundQueue) {
+            if (_disconnecting) return;
+            _disconnecting = true;
+        }
+
+        _log.warn(warning);
+        _outboundQueue.close();
+
+        try {
+            _inputStream.close();
+        } catch (IOException ex) {
+            _log.error(ex);
+        }
+        try {
+            if (null != _outputStream) _outputStream.close();
+        } catch (IOException ex) {
+            _log.error(ex);
         }
     }
 
-}
 
+
+    /**
+     * @return true if there was a reply
+     */
+    private boolean processMessage(byte[] bytes, int offset, int length) throws IOException {
+        int result = _commandDispatcher.dispatch(bytes, offset, length);
+        if (CommandDispatcher.NO_REPLY != result) {
+            AsciiBuffer reply = _commandDispatcher.getReply();
+            send(reply.getBytes(), 0, reply.getLength(), System.currentTimeMillis());
+        }
+
+        // the reply to the switch is the last thing sent in ASCII.  the reader has already
+        // switched the framer
+        if (CommandDispatcher.SWITCH_TO_BINARY == result) _binary = true;
+        return CommandDispatcher.NO_REPLY != result;
+    }
+
+}
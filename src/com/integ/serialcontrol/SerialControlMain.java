@@ -9,9 +9,7 @@ import com.integ.common.system.Application;
 import com.integpg.comm.AUXSerialPort;
 import com.integpg.comm.COMSerialPort;
 import com.integpg.comm.SerialPort;
-import com.integpg.system.JANOS;
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.Socket;
 
 /**
@@ -29,6 +27,12 @@ public class SerialControlMain
     private DigitalInputsIoLogMonitor _digitalInputsIoLogMonitor;
     private RelayOutputsIoLogMonitor _relayOutputsIoLogMonitor;
 
+    /* holds back the alerts for a channel that is changing faster than AlertMinInterval */
+    private final AlertRateLimiter _alertRateLimiter = new AlertRateLimiter();
+
+    /* answers the io queries from memory when StateMirror is set, otherwise null */
+    private IoStateMirror _ioStateMirror = null;
+
 
 
     public static void main(String[] args) throws Exception {
@@ -44,9 +48,14 @@ public class SerialControlMain
 
     public void init(String[] args) throws Exception {
         //
-        // Read the configuration.  Configuration is only consumed on application start-up 
-        // since we are bringing up tcp listeners and taking over serial ports
+        // Read the configuration.  The ports are only consumed on application start-up since we 
+        // are bringing up tcp listeners and taking over serial ports.  the rest of the 
+        // configuration is reloaded when the registry changes
         Config.init();
+        Config.startWatching();
+        LatencyStats.startLogging();
+        CommandExecutor.start();
+        setUpStateMirror();
 
         //
         // set up various features
@@ -59,6 +68,20 @@ public class SerialControlMain
 
 
 
+    private void setUpStateMirror() {
+        if (!Config.getStateMirror()) return;
+
+        //
+        // the mirror is put in front of JANOS before any client can query it.  the IoLog
+        // monitors keep it up to date
+        _ioStateMirror = new IoStateMirror(IoBackends.get(), Config.getInputCount());
+        IoBackends.set(_ioStateMirror);
+        _ioStateMirror.start();
+        AppLog.info("io queries are answered from the state mirror");
+    }
+
+
+
     private void setUpSerialPort() {
         try {
             SerialPort serialPort = null;
@@ -83,12 +106,20 @@ public class SerialControlMain
                 Logger serialLog = RollingFileLog.getLogger(
                         String.format("%s_Serial.log", Application.getAppName()));
 
+                //
+                // the serial port cannot be reconnected so it coalesces alerts, and drops replies,
+                // instead of being disconnected when it falls behind
+                int overflowPolicy = OutboundQueue.parseOverflowPolicy(Config.getOutboundOverflowPolicy());
+                if (OutboundQueue.DISCONNECT == overflowPolicy) overflowPolicy = OutboundQueue.COALESCE;
+
                 //
                 // create an serial control client four our serial port
                 SerialControlClient serialControlClient
                         = new SerialControlClient(serialPortName + " port",
-                                serialPort.getInputStream(), serialPort.getOutputStream());
+                                serialPort.getInputStream(), serialPort.getOutputStream(), overflowPolicy);
                 serialControlClient.setLog(serialLog);
+                serialControlClient.setTransport(LatencyStats.SERIAL);
+                serialControlClient.setDisconnectable(false);
 
                 //
                 /// mark that there is a valid configuration
@@ -110,7 +141,20 @@ public class SerialControlMain
             // use whatever serial settings are in the registry in AUXSerial or COMSerial
             int tcpServerPortNumber = Config.getTcpServerPortNumber();
 
-            if (-1 != tcpServerPortNumber) {
+            if (-1 != tcpServerPortNumber && "polled".equalsIgnoreCase(Config.getTcpServerMode())) {
+                //
+                // serve every connection from one thread so that the number of connections is not
+                // limited by thread stacks
+                PolledTcpServer polledTcpServer
+                        = new PolledTcpServer(tcpServerPortNumber, Config.getTcpPollInterval());
+                polledTcpServer.setLog(RollingFileLog.getLogger(
+                        String.format("%s_TcpServer.log", Application.getAppName())));
+                polledTcpServer.start();
+
+                //
+                /// mark that there is a valid configuration
+                _validConfiguration = true;
+            } else if (-1 != tcpServerPortNumber) {
                 TcpServer tcpServer = new TcpServer("SerialControl-TcpServer", tcpServerPortNumber);
                 tcpServer.setLog(AppLog.getLog());
                 tcpServer.start();
@@ -165,35 +209,14 @@ public class SerialControlMain
             int udpServerPortNumber = Config.getUdpServerPortNumber();
 
             if (-1 != udpServerPortNumber) {
-                UdpServer udpServer = new UdpServer("SerialControl-UdpServer", udpServerPortNumber);
-                udpServer.setLog(AppLog.getLog());
-                udpServer.start();
-
                 //
-                // get a logger for the serial connection
+                // get a logger for the udp connection
                 Logger udpServerLog = RollingFileLog.getLogger(
                         String.format("%s_UdpServer.log", Application.getAppName()));
 
-                udpServer.setListener(new UdpConnectionListener() {
-
-                    @Override
-                    public void processMessage(IClient client, DatagramPacket packet, String message) {
-                        udpServerLog.info(String.format("%s is connected", client.getSocketInfo()));
-
-                        try {
-                            //
-                            // create an serial control client four our serial port
-                            UdpControlClient udpControlClient
-                                    = new UdpControlClient(client.getSocketInfo());
-                            udpControlClient.setLog(udpServerLog);
-                            udpControlClient.processMessage(message);
-                        } catch (IOException ex) {
-                            udpServerLog.error(
-                                    String.format("error setting up udp command client for %s",
-                                            client.getSocketInfo()), ex);
-                        }
-                    }
-                });
+                UdpControlServer udpControlServer = new UdpControlServer(udpServerPortNumber);
+                udpControlServer.setLog(udpServerLog);
+                udpControlServer.start();
 
                 //
                 /// mark that there is a valid configuration
@@ -222,24 +245,28 @@ public class SerialControlMain
 
     @Override
     public void onIoChannelEvent(IoChannelEvent ioEvent) {
+        //
+        // the monitor reads the input counter at the transition so it does not have to be read again
+        boolean isInput = ioEvent instanceof DigitalInputChannelEvent;
+        int counter = isInput ? ((DigitalInputChannelEvent) ioEvent).Counter : 0;
+        if (null != _ioStateMirror) {
+            _ioStateMirror.transition(isInput, ioEvent.Channel, ioEvent.State, counter);
+        }
+
+        //
+        // number the transition so a client that reconnects can ask for what it missed
+        long seq = EventJournal.record(ioEvent.AbbrTypeString, isInput, ioEvent.Channel,
+                ioEvent.State, ioEvent.TransitionTime, counter);
+
         //
         // see if unsolicited io alerts is enabled in the configuration 
         boolean sendUnsolicitedIoAlerts = Config.getSendUnsolicitedIoAlerts();
         if (sendUnsolicitedIoAlerts) {
             //
-            // build the string to send
-            String outputString = String.format("%s%d=%d",
-                    ioEvent.AbbrTypeString, ioEvent.Channel, (ioEvent.State ? 1 : 0));
-
-            if (ioEvent instanceof DigitalInputChannelEvent
-                    && Config.getSendCounts()) {
-                int counter = JANOS.getInputCounter(ioEvent.Channel - 1);
-                outputString = String.format("%s,%d", outputString, counter);
-            }
-
-            //
-            // broadcast to all connected clients
-            SerialControlClient.broadcast(outputString, ioEvent.TransitionTime);
+            // broadcast to the connected clients that subscribe to the channel, subject to the
+            // rate limit.  the binary alert always carries the counter
+            _alertRateLimiter.alert(ioEvent.AbbrTypeString, isInput, ioEvent.Channel,
+                    ioEvent.State, ioEvent.TransitionTime, counter, seq);
         }
     }
 
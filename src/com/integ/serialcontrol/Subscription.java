@@ -0,0 +1,87 @@
+package com.integ.serialcontrol;
+
+/**
+ * The unsolicited alerts a connection wants. Each connection owns one and changes it with the sub
+ * command. A broadcast tests the channel against the masks before it encodes anything for the
+ * connection, so the fields are volatile and each one is read once per alert.
+ */
+public class Subscription {
+
+    /* the counts setting follows the SendCounts key */
+    public static final int COUNTS_DEFAULT = -1;
+    public static final int COUNTS_OFF = 0;
+    public static final int COUNTS_ON = 1;
+
+    /* bit 0 is channel 1 */
+    private volatile int _inputMask = -1;
+    private volatile int _outputMask = -1;
+    private volatile int _counts = COUNTS_DEFAULT;
+
+
+
+    /**
+     * @return true if the connection wants alerts for the channel
+     */
+    public boolean matches(boolean isInput, int channel) {
+        int mask = isInput ? _inputMask : _outputMask;
+        return 0 != ((mask >>> (channel - 1)) & 1);
+    }
+
+
+
+    /**
+     * @return true if input alerts should carry the counter
+     */
+    public boolean includesCounts() {
+        int counts = _counts;
+        return (COUNTS_DEFAULT == counts) ? Config.getSendCounts() : COUNTS_ON == counts;
+    }
+
+
+
+    /**
+     * subscribes to every alert with the default counts setting
+     */
+    public void reset() {
+        _inputMask = -1;
+        _outputMask = -1;
+        _counts = COUNTS_DEFAULT;
+    }
+
+
+
+    public int getInputMask() {
+        return _inputMask;
+    }
+
+
+
+    public void setInputMask(int inputMask) {
+        _inputMask = inputMask;
+    }
+
+
+
+    public int getOutputMask() {
+        return _outputMask;
+    }
+
+
+
+    public void setOutputMask(int outputMask) {
+        _outputMask = outputMask;
+    }
+
+
+
+    public int getCounts() {
+        return _counts;
+    }
+
+
+
+    public void setCounts(int counts) {
+        _counts = counts;
+    }
+
+}
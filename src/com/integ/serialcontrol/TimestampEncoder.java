@@ -0,0 +1,44 @@
+package com.integ.serialcontrol;
+
+import java.text.QuickDateFormat;
+
+/**
+ * Renders the "MM/dd/yy HH:mm:ss.fff" date stamp that prefixes the frames sent to the clients. The
+ * text up to the seconds is formatted once per second and cached, so an event only renders its
+ * milliseconds.
+ */
+public class TimestampEncoder {
+
+    private static final String PATTERN = "MM/dd/yy HH:mm:ss.fff";
+    /* the length of the cached text, everything except the milliseconds */
+    private static final int PREFIX_LENGTH = PATTERN.length() - 3;
+
+    public static final int LENGTH = PATTERN.length();
+
+    private final QuickDateFormat _quickDateFormat = new QuickDateFormat(PATTERN);
+    private final byte[] _prefix = new byte[PREFIX_LENGTH];
+    private long _second = Long.MIN_VALUE;
+
+
+
+    public synchronized void encode(long timestamp, AsciiBuffer buffer) {
+        // like QuickDateFormat, a timestamp that is not set means now
+        if (timestamp <= 0) timestamp = System.currentTimeMillis();
+
+        long second = timestamp / 1000;
+        if (second != _second) {
+            String prefix = _quickDateFormat.format(second * 1000);
+            for (int i = 0; i < PREFIX_LENGTH; i++) {
+                _prefix[i] = (byte) prefix.charAt(i);
+            }
+            _second = second;
+        }
+
+        int millis = (int) (timestamp - second * 1000);
+        buffer.append(_prefix, 0, PREFIX_LENGTH)
+                .append((char) ('0' + millis / 100))
+                .append((char) ('0' + millis / 10 % 10))
+                .append((char) ('0' + millis % 10));
+    }
+
+}
@@ -3,47 +3,147 @@ package com.integ.serialcontrol;
 import com.integ.common.logging.Logger;
 import com.integ.common.logging.SystemOutLog;
 import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+/**
+ * Handles the commands in a udp datagram. One of these is reused for every datagram so handling
+ * a datagram does not allocate.
+ *
+ * A datagram holds one or more commands separated by the incoming termination. It may start with
+ * a sequence number in the form "#123 " that is echoed in the reply. The reply holds a line for
+ * each command that answered, like a query, followed by a status line:
+ *
+ *     #123 din3=1
+ *     #123 ok outputs=00000003
+ *
+ * The status is "error" if any command was unknown or not a valid relay command.
+ *
+ * A datagram that starts with the BinaryProtocol sync byte holds one or more binary frames and the
+ * reply holds their responses.
+ */
 public class UdpControlClient {
 
-//    private static final QuickDateFormat QUICK_DATE_FORMAT = new QuickDateFormat("MM/dd/yy HH:mm:ss.fff");
-    private static final Pattern IO_CONTROL_PATTERN = Pattern.compile("([copt\\+\\d\\*]+(=\\d+)?)$", Pattern.CASE_INSENSITIVE);
-
     // initially we will log to the system.out stream unless setLog is called
-    private Logger _log = SystemOutLog.getLogger();
+    private AsyncLog _log = AsyncLog.getLogger(SystemOutLog.getLogger());
 
-    private final String _clientNameString;
+    private final CommandDispatcher _commandDispatcher = new CommandDispatcher();
+    private final BinaryProtocol _binaryProtocol = new BinaryProtocol();
+    private final AsciiBuffer _reply = new AsciiBuffer(128);
 
 
 
-    public UdpControlClient(String clientNameString) {
-        _clientNameString = clientNameString;
+    public void setLog(Logger log) {
+        _log = AsyncLog.getLogger(log);
     }
 
 
 
-    public void setLog(Logger log) {
-        _log = log;
+    /**
+     * @return the reply to the last datagram, valid until the next one is processed
+     */
+    public AsciiBuffer getReply() {
+        return _reply;
     }
 
 
 
-    public void processMessage(String message) throws IOException {
-        Matcher matcher;
-        if ((matcher = IO_CONTROL_PATTERN.matcher(message)).find()) {
-//            System.out.println("IO_CONTROL_PATTERN.groupCount(): " + matcher.groupCount());
-//            for (int i = 0; i < matcher.groupCount(); i++) {
-//                System.out.println("  IO_CONTROL_PATTERN.group[" + i + "]: " + matcher.group(i));
-//            }
+    /**
+     * executes the commands in the datagram and builds the reply
+     *
+     * @param replies false if the reply will not be sent.  the status line and its read of the
+     * outputs are then skipped.
+     */
+    public void processMessage(byte[] bytes, int offset, int length, boolean replies) {
+        _reply.reset();
+        int end = offset + length;
+
+        if (offset < end && BinaryProtocol.SYNC == (bytes[offset] & 0xff)) {
+            processBinary(bytes, offset, end);
+            return;
+        }
 
-            if (1 < matcher.groupCount()) {
-                Jrmon.parseCommand(matcher.group(1));
+        //
+        // pick off the sequence number if there is one
+        int sequenceOffset = offset;
+        int sequenceLength = 0;
+        if (offset < end && '#' == bytes[offset]) {
+            int i = offset + 1;
+            while (i < end && bytes[i] > ' ') {
+                i++;
+            }
+            sequenceLength = i - offset;
+            while (i < end && bytes[i] <= ' ') {
+                i++;
             }
+            offset = i;
+        }
 
+        byte[] terminationBytes = Config.getIncomingTerminationBytes();
+        boolean failed = false;
+        while (offset < end) {
+            int commandEnd = CommandFramer.indexOf(bytes, offset, end, terminationBytes);
+            if (-1 == commandEnd) commandEnd = end;
+            if (commandEnd == offset) {
+                // skip the empty command between back to back terminations
+                offset += terminationBytes.length;
+                continue;
+            }
+
+            try {
+                if (CommandDispatcher.REPLY == _commandDispatcher.dispatch(bytes, offset, commandEnd - offset)) {
+                    appendSequence(bytes, sequenceOffset, sequenceLength);
+                    AsciiBuffer reply = _commandDispatcher.getReply();
+                    _reply.append(reply.getBytes(), 0, reply.getLength());
+                    appendTermination();
+                }
+                failed |= _commandDispatcher.isFailed();
+            } catch (IOException ex) {
+                _log.error(ex);
+                failed = true;
+            }
+
+            offset = commandEnd + terminationBytes.length;
         }
+        if (!replies) return;
+
+        appendSequence(bytes, sequenceOffset, sequenceLength);
+        _reply.append(failed ? "error" : "ok").append(" outputs=")
+                .appendHex(IoBackends.get().getOutputStates(), 8);
+        appendTermination();
     }
 
-}
 
+
+    /**
+     * executes the binary frames in the datagram.  a datagram cannot hold part of a frame so
+     * anything that is not a whole frame ends it with an error.
+     */
+    private void processBinary(byte[] bytes, int offset, int end) {
+        while (offset < end) {
+            int frameLength = BinaryProtocol.checkFrame(bytes, offset, end);
+            if (0 >= frameLength) {
+                BinaryProtocol.appendError(_reply,
+                        (0 == frameLength) ? BinaryProtocol.ERROR_LENGTH : BinaryProtocol.ERROR_CHECKSUM);
+                return;
+            }
+
+            _binaryProtocol.process(bytes, offset + 2, frameLength - 3, _reply);
+            offset += frameLength;
+        }
+    }
+
+
+
+    private void appendSequence(byte[] bytes, int offset, int length) {
+        if (0 < length) {
+            _reply.append(bytes, offset, length).append(' ');
+        }
+    }
+
+
+
+    private void appendTermination() {
+        byte[] terminationBytes = Config.getOutgoingTerminationBytes();
+        _reply.append(terminationBytes, 0, terminationBytes.length);
+    }
+
+}
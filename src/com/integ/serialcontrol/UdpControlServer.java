@@ -0,0 +1,89 @@
+package com.integ.serialcontrol;
+
+import com.integ.common.logging.AppLog;
+import com.integ.common.logging.Logger;
+import com.integ.common.logging.SystemOutLog;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+
+/**
+ * Receives udp commands on one thread with one socket. The UdpServer in the common library cannot
+ * send a reply so this owns its socket. The receive buffer, the packets and the UdpControlClient
+ * are reused for every datagram. When UdpReplies is enabled the reply is sent back to the address
+ * and port the datagram came from.
+ */
+public class UdpControlServer
+        implements Runnable {
+
+    /* large enough for any datagram that fits in one ethernet frame */
+    private static final int MAX_DATAGRAM_LENGTH = 1500;
+
+    // initially we will log to the system.out stream unless setLog is called
+    private AsyncLog _log = AsyncLog.getLogger(SystemOutLog.getLogger());
+
+    private final int _portNumber;
+    private final byte[] _receiveBuffer = new byte[MAX_DATAGRAM_LENGTH];
+    private final DatagramPacket _receivePacket = new DatagramPacket(_receiveBuffer, MAX_DATAGRAM_LENGTH);
+    private final DatagramPacket _replyPacket = new DatagramPacket(new byte[0], 0);
+    private final UdpControlClient _udpControlClient = new UdpControlClient();
+
+    private DatagramSocket _datagramSocket = null;
+    private Thread _thread = null;
+
+
+
+    public UdpControlServer(int portNumber) {
+        _portNumber = portNumber;
+    }
+
+
+
+    public void setLog(Logger log) {
+        _log = AsyncLog.getLogger(log);
+        _udpControlClient.setLog(log);
+    }
+
+
+
+    public void start() throws IOException {
+        if (null != _thread) return;
+
+        _datagramSocket = new DatagramSocket(_portNumber);
+
+        _thread = new Thread(this);
+        _thread.setName("SerialControl-UdpServer");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                _receivePacket.setLength(MAX_DATAGRAM_LENGTH);
+                _datagramSocket.receive(_receivePacket);
+                long receivedTime = System.currentTimeMillis();
+
+                boolean replies = Config.getUdpReplies();
+                _udpControlClient.processMessage(_receiveBuffer, 0, _receivePacket.getLength(), replies);
+
+                if (replies) {
+                    AsciiBuffer reply = _udpControlClient.getReply();
+                    _replyPacket.setData(reply.getBytes());
+                    _replyPacket.setLength(reply.getLength());
+                    _replyPacket.setAddress(_receivePacket.getAddress());
+                    _replyPacket.setPort(_receivePacket.getPort());
+                    _datagramSocket.send(_replyPacket);
+                }
+                LatencyStats.recordCommand(LatencyStats.UDP, receivedTime);
+            } catch (Exception ex) {
+                _log.error("error handling udp datagram", ex);
+                AppLog.error(ex);
+            }
+        }
+    }
+
+}